@@ -0,0 +1,68 @@
+// The outcome of authorizing a PaymentRequest, including how many attempts it took and how long
+public class AuthorizationResult {
+    private final PaymentRequest request;
+    private final boolean approved;
+    private final boolean unknown;
+    private final String authorizationCode;
+    private final String message;
+    private int attempts = 1;
+    private long latencyMillis;
+
+    public AuthorizationResult(PaymentRequest request, boolean approved, String authorizationCode, String message) {
+        this(request, approved, false, authorizationCode, message);
+    }
+
+    private AuthorizationResult(PaymentRequest request, boolean approved, boolean unknown, String authorizationCode, String message) {
+        this.request = request;
+        this.approved = approved;
+        this.unknown = unknown;
+        this.authorizationCode = authorizationCode;
+        this.message = message;
+    }
+
+    public static AuthorizationResult declined(PaymentRequest request, String message) {
+        return new AuthorizationResult(request, false, null, message);
+    }
+
+    // The processor never gave an answer, so the payment may have gone through; it is not approved
+    // as far as the till is concerned and the gateway reverses it
+    public static AuthorizationResult unknown(PaymentRequest request, String message) {
+        return new AuthorizationResult(request, false, true, null, message);
+    }
+
+    public PaymentRequest getRequest() {
+        return request;
+    }
+
+    public boolean isApproved() {
+        return approved;
+    }
+
+    public boolean isUnknown() {
+        return unknown;
+    }
+
+    public String getAuthorizationCode() {
+        return authorizationCode;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+}
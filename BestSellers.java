@@ -0,0 +1,184 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Streaming best sellers for today and this week using the Space-Saving heavy-hitters sketch.
+// Each window tracks at most CAPACITY products; when a new product arrives and the sketch is full it
+// replaces the smallest counter and inherits its count as the error bound. Any product selling more
+// than 1/CAPACITY of the window's units is guaranteed to be in the sketch. Fed from the bill feed and
+// saved on shutdown with the feed offset reached, like SalesRollups.
+public class BestSellers {
+    public static final int CAPACITY = 256;
+    public static final int TODAY = 0;
+    public static final int THIS_WEEK = 1;
+
+    private final Path stateFile;
+    private final Sketch[] windows = {new Sketch(CAPACITY), new Sketch(CAPACITY)};
+
+    public BestSellers(Path stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    static class Sketch {
+        final IntIntMap slots;
+        final int[] productIds;
+        final long[] counts;
+        final long[] errors;
+        int size;
+        // Day or week start the counts belong to
+        long window = -1;
+
+        Sketch(int capacity) {
+            slots = new IntIntMap(capacity);
+            productIds = new int[capacity];
+            counts = new long[capacity];
+            errors = new long[capacity];
+        }
+
+        void reset(long newWindow) {
+            slots.clear();
+            size = 0;
+            window = newWindow;
+        }
+
+        void offer(int productId, long units) {
+            int slot = slots.get(productId, -1);
+            if (slot >= 0) {
+                counts[slot] += units;
+                return;
+            }
+            if (size < productIds.length) {
+                slot = size++;
+                errors[slot] = 0;
+                counts[slot] = units;
+            } else {
+                slot = 0;
+                for (int i = 1; i < size; i++) {
+                    if (counts[i] < counts[slot]) {
+                        slot = i;
+                    }
+                }
+                slots.remove(productIds[slot]);
+                errors[slot] = counts[slot];
+                counts[slot] += units;
+            }
+            productIds[slot] = productId;
+            slots.put(productId, slot);
+        }
+
+        // Takes returned units off a product still in the sketch; one that was evicted has nothing to correct
+        void retract(int productId, long units) {
+            int slot = slots.get(productId, -1);
+            if (slot >= 0) {
+                counts[slot] = Math.max(0, counts[slot] - units);
+                errors[slot] = Math.min(errors[slot], counts[slot]);
+            }
+        }
+    }
+
+    // BillFeed subscriber
+    public synchronized void onBill(BillEvent event) {
+        boolean refund = BillEvent.REFUNDED.equals(event.getType());
+        if (!refund && !BillEvent.SETTLED.equals(event.getType())) {
+            return;
+        }
+        LocalDate day = Instant.ofEpochMilli(event.getOccurredAt()).atZone(ZoneId.systemDefault()).toLocalDate();
+        long[] keys = windowKeys(day);
+        for (int w = 0; w < windows.length; w++) {
+            // Bills from an earlier window arriving late are ignored; a later one starts a new window
+            if (keys[w] < windows[w].window) {
+                continue;
+            }
+            if (keys[w] > windows[w].window) {
+                windows[w].reset(keys[w]);
+            }
+            for (int i = 0; i < event.getLineCount(); i++) {
+                if (refund) {
+                    windows[w].retract(event.getProductId(i), event.getQuantity(i));
+                } else {
+                    windows[w].offer(event.getProductId(i), event.getQuantity(i));
+                }
+            }
+        }
+    }
+
+    // Up to limit products for the window, best first, as {productId, estimated units, guaranteed units}
+    public synchronized List<long[]> top(int window, int limit) {
+        Sketch sketch = windows[window];
+        List<long[]> top = new ArrayList<>();
+        if (sketch.window != windowKeys(LocalDate.now())[window]) {
+            return top;
+        }
+        Integer[] order = new Integer[sketch.size];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(sketch.counts[b], sketch.counts[a]));
+        for (int i = 0; i < order.length && i < limit; i++) {
+            int slot = order[i];
+            top.add(new long[] {sketch.productIds[slot], sketch.counts[slot], sketch.counts[slot] - sketch.errors[slot]});
+        }
+        return top;
+    }
+
+    public synchronized void load(BillFeedLog log) throws IOException {
+        long offset = 0;
+        if (Files.exists(stateFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile)))) {
+                offset = in.readLong();
+                for (Sketch sketch : windows) {
+                    sketch.reset(in.readLong());
+                    int size = in.readInt();
+                    for (int i = 0; i < size; i++) {
+                        sketch.productIds[i] = in.readInt();
+                        sketch.counts[i] = in.readLong();
+                        sketch.errors[i] = in.readLong();
+                        sketch.slots.put(sketch.productIds[i], i);
+                    }
+                    sketch.size = size;
+                }
+            }
+        }
+        if (log != null) {
+            log.read(offset, Integer.MAX_VALUE, (eventOffset, event) -> onBill(event));
+        }
+    }
+
+    public synchronized void save(BillFeedLog log) throws IOException {
+        if (stateFile.getParent() != null) {
+            Files.createDirectories(stateFile.getParent());
+        }
+        Path tmp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeLong(log != null ? log.endOffset() : 0);
+            for (Sketch sketch : windows) {
+                out.writeLong(sketch.window);
+                out.writeInt(sketch.size);
+                for (int i = 0; i < sketch.size; i++) {
+                    out.writeInt(sketch.productIds[i]);
+                    out.writeLong(sketch.counts[i]);
+                    out.writeLong(sketch.errors[i]);
+                }
+            }
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Epoch day of the date, and epoch day of the Monday starting its week
+    private static long[] windowKeys(LocalDate day) {
+        return new long[] {day.toEpochDay(), day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).toEpochDay()};
+    }
+}
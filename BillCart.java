@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// In-memory cart of an open bill. Lines and totals live here until the bill is settled,
+// when the bills row and its bill_items are written in one transaction.
+public class BillCart {
+    private static final Map<Integer, BillCart> OPEN_CARTS = new ConcurrentHashMap<>();
+    // Set once the journal has been recovered; every change to an open cart is journaled from then on
+    private static volatile CartJournal journal;
+
+    public static class Line {
+        private final int productId;
+        private final String productName;
+        private final double mrp;
+        private final double rate;
+        private int quantity;
+
+        public Line(int productId, String productName, double mrp, double rate, int quantity) {
+            this.productId = productId;
+            this.productName = productName;
+            this.mrp = mrp;
+            this.rate = rate;
+            this.quantity = quantity;
+        }
+
+        public int getProductId() {
+            return productId;
+        }
+
+        public String getProductName() {
+            return productName;
+        }
+
+        public double getMrp() {
+            return mrp;
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public double getAmount() {
+            return rate * quantity;
+        }
+    }
+
+    private final int billId;
+    private final int customerId;
+    private final long openedAt;
+    // Last time a line was added, changed or removed; abandonment is measured from here. Journaled with
+    // every edit, so a recovered cart keeps it.
+    private volatile long lastTouchedAt;
+    private final LinkedHashMap<Integer, Line> lines = new LinkedHashMap<>();
+    private int totalQuantity;
+    private double total;
+
+    private BillCart(int billId, int customerId, long openedAt) {
+        this.billId = billId;
+        this.customerId = customerId;
+        this.openedAt = openedAt;
+        this.lastTouchedAt = openedAt;
+    }
+
+    public static void setJournal(CartJournal cartJournal) {
+        journal = cartJournal;
+    }
+
+    public static BillCart open(int billId, int customerId) {
+        BillCart cart = new BillCart(billId, customerId, System.currentTimeMillis());
+        OPEN_CARTS.put(billId, cart);
+        if (journal != null) {
+            journal.logOpen(cart);
+        }
+        return cart;
+    }
+
+    // Rebuilds a cart from the journal; it is not registered or journaled until register is called
+    static BillCart restore(int billId, int customerId, long openedAt) {
+        return new BillCart(billId, customerId, openedAt);
+    }
+
+    static void register(BillCart cart) {
+        OPEN_CARTS.put(cart.billId, cart);
+    }
+
+    // Replaying an edit stamps the cart with the time of the replay; this puts back the journaled time
+    void restoreTouchedAt(long touchedAt) {
+        lastTouchedAt = touchedAt;
+    }
+
+    public static BillCart get(int billId) {
+        return OPEN_CARTS.get(billId);
+    }
+
+    public static BillCart close(int billId) {
+        BillCart cart = OPEN_CARTS.remove(billId);
+        if (cart != null && journal != null) {
+            journal.logClose(billId);
+        }
+        return cart;
+    }
+
+    public static List<BillCart> openCarts() {
+        return new ArrayList<>(OPEN_CARTS.values());
+    }
+
+    public int getBillId() {
+        return billId;
+    }
+
+    public int getCustomerId() {
+        return customerId;
+    }
+
+    public long getOpenedAt() {
+        return openedAt;
+    }
+
+    public long getLastTouchedAt() {
+        return lastTouchedAt;
+    }
+
+    public synchronized int getTotalQuantity() {
+        return totalQuantity;
+    }
+
+    public synchronized double getTotal() {
+        return total;
+    }
+
+    public synchronized boolean isEmpty() {
+        return lines.isEmpty();
+    }
+
+    public synchronized Collection<Line> getLines() {
+        return new ArrayList<>(lines.values());
+    }
+
+    public synchronized int quantityOf(int productId) {
+        Line line = lines.get(productId);
+        return line == null ? 0 : line.quantity;
+    }
+
+    public synchronized Line findLine(String productName) {
+        for (Line line : lines.values()) {
+            if (line.productName.equalsIgnoreCase(productName)) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    // Scanning a product already in the cart adds to its line
+    public synchronized void add(int productId, String productName, double mrp, double rate, int quantity) {
+        Line line = lines.get(productId);
+        if (line == null) {
+            lines.put(productId, new Line(productId, productName, mrp, rate, quantity));
+        } else {
+            line.quantity += quantity;
+        }
+        totalQuantity += quantity;
+        total += rate * quantity;
+        lastTouchedAt = System.currentTimeMillis();
+        if (journal != null && OPEN_CARTS.get(billId) == this) {
+            journal.logAdd(billId, productId, productName, mrp, rate, quantity, lastTouchedAt);
+        }
+    }
+
+    public synchronized boolean setQuantity(int productId, int quantity) {
+        Line line = lines.get(productId);
+        if (line == null) {
+            return false;
+        }
+        totalQuantity += quantity - line.quantity;
+        total += line.rate * (quantity - line.quantity);
+        line.quantity = quantity;
+        lastTouchedAt = System.currentTimeMillis();
+        if (journal != null && OPEN_CARTS.get(billId) == this) {
+            journal.logSet(billId, productId, quantity, lastTouchedAt);
+        }
+        return true;
+    }
+
+    public synchronized Line remove(int productId) {
+        Line line = lines.remove(productId);
+        if (line != null) {
+            totalQuantity -= line.quantity;
+            total -= line.getAmount();
+            lastTouchedAt = System.currentTimeMillis();
+            if (journal != null && OPEN_CARTS.get(billId) == this) {
+                journal.logRemove(billId, productId, lastTouchedAt);
+            }
+        }
+        return line;
+    }
+}
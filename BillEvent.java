@@ -0,0 +1,203 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// A change to a bill, as published on the BillFeed and written to its log.
+// Lines are kept as parallel arrays so an event is cheap to build, encode and scan.
+// Tenders are too, and every event writes them to the log, a single tender included.
+// A refund carries the returned lines and the refunded amount as positive numbers, with the refund
+// tender as its payment method; subscribers take them off what the bill added.
+public class BillEvent {
+    public static final String SETTLED = "settled";
+    public static final String REFUNDED = "refunded";
+
+    private final String type;
+    private final int billId;
+    private final int customerId;
+    private final int counterId;
+    private final long occurredAt;
+    private final String paymentMethod;
+    private final int totalQuantity;
+    private final double total;
+    private final int[] productIds;
+    private final int[] quantities;
+    private final double[] rates;
+    private final String[] tenderMethods;
+    private final double[] tenderAmounts;
+
+    public BillEvent(String type, int billId, int customerId, int counterId, long occurredAt, String paymentMethod,
+                     int totalQuantity, double total, int[] productIds, int[] quantities, double[] rates) {
+        this(type, billId, customerId, counterId, occurredAt, paymentMethod, totalQuantity, total, productIds, quantities, rates,
+                new String[] {paymentMethod}, new double[] {total});
+    }
+
+    public BillEvent(String type, int billId, int customerId, int counterId, long occurredAt, String paymentMethod,
+                     int totalQuantity, double total, int[] productIds, int[] quantities, double[] rates,
+                     String[] tenderMethods, double[] tenderAmounts) {
+        this.type = type;
+        this.billId = billId;
+        this.customerId = customerId;
+        this.counterId = counterId;
+        this.occurredAt = occurredAt;
+        this.paymentMethod = paymentMethod;
+        this.totalQuantity = totalQuantity;
+        this.total = total;
+        this.productIds = productIds;
+        this.quantities = quantities;
+        this.rates = rates;
+        this.tenderMethods = tenderMethods;
+        this.tenderAmounts = tenderAmounts;
+    }
+
+    public static BillEvent settled(BillCart cart, List<Tender> tenders) {
+        List<BillCart.Line> lines = new ArrayList<>(cart.getLines());
+        int[] productIds = new int[lines.size()];
+        int[] quantities = new int[lines.size()];
+        double[] rates = new double[lines.size()];
+        for (int i = 0; i < lines.size(); i++) {
+            productIds[i] = lines.get(i).getProductId();
+            quantities[i] = lines.get(i).getQuantity();
+            rates[i] = lines.get(i).getRate();
+        }
+        String[] tenderMethods = new String[tenders.size()];
+        double[] tenderAmounts = new double[tenders.size()];
+        for (int i = 0; i < tenders.size(); i++) {
+            tenderMethods[i] = tenders.get(i).getMethod();
+            tenderAmounts[i] = tenders.get(i).getAmount();
+        }
+        return new BillEvent(SETTLED, cart.getBillId(), cart.getCustomerId(), RetailShopBillingSystem.COUNTER_ID,
+                System.currentTimeMillis(), Tender.methodOf(tenders), cart.getTotalQuantity(), cart.getTotal(),
+                productIds, quantities, rates, tenderMethods, tenderAmounts);
+    }
+
+    public static BillEvent refunded(int billId, int customerId, String refundMethod, int[] productIds, int[] quantities, double[] rates) {
+        int totalQuantity = 0;
+        double total = 0;
+        for (int i = 0; i < productIds.length; i++) {
+            totalQuantity += quantities[i];
+            total += quantities[i] * rates[i];
+        }
+        return new BillEvent(REFUNDED, billId, customerId, RetailShopBillingSystem.COUNTER_ID, System.currentTimeMillis(),
+                refundMethod, totalQuantity, total, productIds, quantities, rates);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public int getBillId() {
+        return billId;
+    }
+
+    public int getCustomerId() {
+        return customerId;
+    }
+
+    public int getCounterId() {
+        return counterId;
+    }
+
+    public long getOccurredAt() {
+        return occurredAt;
+    }
+
+    public String getPaymentMethod() {
+        return paymentMethod;
+    }
+
+    public int getTotalQuantity() {
+        return totalQuantity;
+    }
+
+    public double getTotal() {
+        return total;
+    }
+
+    public int getLineCount() {
+        return productIds.length;
+    }
+
+    public int getProductId(int line) {
+        return productIds[line];
+    }
+
+    public int getQuantity(int line) {
+        return quantities[line];
+    }
+
+    public double getRate(int line) {
+        return rates[line];
+    }
+
+    public int getTenderCount() {
+        return tenderMethods.length;
+    }
+
+    public String getTenderMethod(int tender) {
+        return tenderMethods[tender];
+    }
+
+    public double getTenderAmount(int tender) {
+        return tenderAmounts[tender];
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(type);
+        out.writeInt(billId);
+        out.writeInt(customerId);
+        out.writeInt(counterId);
+        out.writeLong(occurredAt);
+        out.writeUTF(paymentMethod);
+        out.writeInt(totalQuantity);
+        out.writeDouble(total);
+        out.writeInt(productIds.length);
+        for (int i = 0; i < productIds.length; i++) {
+            out.writeInt(productIds[i]);
+            out.writeInt(quantities[i]);
+            out.writeDouble(rates[i]);
+        }
+        out.writeInt(tenderMethods.length);
+        for (int i = 0; i < tenderMethods.length; i++) {
+            out.writeUTF(tenderMethods[i]);
+            out.writeDouble(tenderAmounts[i]);
+        }
+    }
+
+    public static BillEvent readFrom(DataInputStream in) throws IOException {
+        String type = in.readUTF();
+        int billId = in.readInt();
+        int customerId = in.readInt();
+        int counterId = in.readInt();
+        long occurredAt = in.readLong();
+        String paymentMethod = in.readUTF();
+        int totalQuantity = in.readInt();
+        double total = in.readDouble();
+        int lineCount = in.readInt();
+        int[] productIds = new int[lineCount];
+        int[] quantities = new int[lineCount];
+        double[] rates = new double[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            productIds[i] = in.readInt();
+            quantities[i] = in.readInt();
+            rates[i] = in.readDouble();
+        }
+        int tenderCount = in.readInt();
+        String[] tenderMethods = new String[tenderCount];
+        double[] tenderAmounts = new double[tenderCount];
+        for (int i = 0; i < tenderCount; i++) {
+            tenderMethods[i] = in.readUTF();
+            tenderAmounts[i] = in.readDouble();
+        }
+        return new BillEvent(type, billId, customerId, counterId, occurredAt, paymentMethod, totalQuantity, total,
+                productIds, quantities, rates, tenderMethods, tenderAmounts);
+    }
+
+    @Override
+    public String toString() {
+        return type + " bill=" + billId + " customer=" + customerId + " counter=" + counterId + " at=" + occurredAt
+                + " method=" + paymentMethod + " qty=" + totalQuantity + " total=" + String.format("%.2f", total)
+                + " lines=" + productIds.length;
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// In-process publish/subscribe bus for bill changes. Publishing writes the event to the durable
+// BillFeedLog first, when there is one, then hands it to a single dispatcher thread that delivers
+// to every subscriber in publish order. A subscriber that throws does not stop the others.
+public class BillFeed {
+    private final BillFeedLog log;
+    private final List<Consumer<BillEvent>> subscribers = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<BillEvent> pending = new LinkedBlockingQueue<>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private Thread dispatcher;
+    private volatile boolean running;
+
+    // log may be null for an in-memory feed only
+    public BillFeed(BillFeedLog log) {
+        this.log = log;
+    }
+
+    public BillFeedLog getLog() {
+        return log;
+    }
+
+    public void subscribe(Consumer<BillEvent> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void publish(BillEvent event) {
+        if (log != null) {
+            try {
+                log.append(event);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        published.incrementAndGet();
+        pending.add(event);
+    }
+
+    // Waits until every event published so far has reached the subscribers; false on timeout
+    public boolean awaitDelivered(long timeoutMillis) throws InterruptedException {
+        long target = published.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (delivered.get() < target) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    public void start() {
+        running = true;
+        dispatcher = new Thread(() -> {
+            while (running) {
+                try {
+                    deliver(pending.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "bill-feed");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    // Stops the dispatcher and delivers whatever is still waiting on the caller's thread
+    public void stop() {
+        running = false;
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+            try {
+                dispatcher.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        BillEvent event;
+        while ((event = pending.poll()) != null) {
+            deliver(event);
+        }
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void deliver(BillEvent event) {
+        for (Consumer<BillEvent> subscriber : subscribers) {
+            try {
+                subscriber.accept(event);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        delivered.incrementAndGet();
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+// Durable, append-only log of BillEvents. Each record is [length][crc32][event]; an event's offset
+// is the byte position of its record, so a consumer resumes by reading from the offset it last committed.
+// Committed offsets are kept per consumer name next to the log. Run main to tail the log from the console.
+public class BillFeedLog {
+    private final Path file;
+    private FileChannel channel;
+
+    public BillFeedLog(Path file) {
+        this.file = file;
+    }
+
+    public synchronized void open() throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        // Drop a record cut short by a crash so new records start on a clean boundary
+        long end = validEnd();
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(end);
+        channel.position(end);
+    }
+
+    // Appends the event and forces it to disk; returns its offset
+    public synchronized long append(BillEvent event) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        event.writeTo(new DataOutputStream(bytes));
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        long offset = channel.position();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+        return offset;
+    }
+
+    // Offset the next appended event will get
+    public synchronized long endOffset() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            return channel.position();
+        }
+        return Files.exists(file) ? Files.size(file) : 0;
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // Hands every complete record from offset on to the consumer with its offset; returns the offset to read from next
+    public long read(long offset, int maxEvents, BiConsumer<Long, BillEvent> consumer) throws IOException {
+        if (!Files.exists(file)) {
+            return offset;
+        }
+        try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = reader.size();
+            ByteBuffer header = ByteBuffer.allocate(8);
+            int read = 0;
+            while (read < maxEvents && offset + 8 <= size) {
+                header.clear();
+                reader.read(header, offset);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 0 || offset + 8 + length > size) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                reader.read(payload, offset + 8);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                consumer.accept(offset, BillEvent.readFrom(new DataInputStream(new ByteArrayInputStream(payload.array()))));
+                offset += 8 + length;
+                read++;
+            }
+        }
+        return offset;
+    }
+
+    public long loadOffset(String consumerName) throws IOException {
+        Path offsetFile = offsetFile(consumerName);
+        if (!Files.exists(offsetFile)) {
+            return 0;
+        }
+        return Long.parseLong(new String(Files.readAllBytes(offsetFile), StandardCharsets.UTF_8).trim());
+    }
+
+    public void commitOffset(String consumerName, long offset) throws IOException {
+        Path offsetFile = offsetFile(consumerName);
+        Path tmp = offsetFile.resolveSibling(offsetFile.getFileName() + ".tmp");
+        Files.write(tmp, Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, offsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path offsetFile(String consumerName) {
+        return file.resolveSibling(file.getFileName() + "." + consumerName + ".offset");
+    }
+
+    private long validEnd() throws IOException {
+        final long[] end = {0};
+        long next = 0;
+        do {
+            end[0] = next;
+            next = read(end[0], 1024, (offset, event) -> { });
+        } while (next != end[0]);
+        return end[0];
+    }
+
+    // java BillFeedLog <consumer> [log file]: prints events from the consumer's committed offset and follows the log
+    public static void main(String[] args) throws Exception {
+        String consumerName = args.length > 0 ? args[0] : "console";
+        BillFeedLog log = new BillFeedLog(Paths.get(args.length > 1 ? args[1] : "feed/bills.log"));
+        long offset = log.loadOffset(consumerName);
+        while (true) {
+            long next = log.read(offset, 1000, (eventOffset, event) -> System.out.println(eventOffset + " " + event));
+            if (next != offset) {
+                log.commitOffset(consumerName, next);
+                offset = next;
+            } else {
+                Thread.sleep(1000);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// Hi/lo bill id allocator. Each counter reserves a block of BLOCK_SIZE ids from the shared
+// bill_id_blocks row in one statement, then hands ids out of that block from memory.
+// Once a block is half used the next one is reserved ahead as a standby, so the till can keep
+// opening bills for a while if the database goes away.
+public class BillIdAllocator {
+    public static final int BLOCK_SIZE = 100;
+
+    private final int counterId;
+    private int next;
+    private int limit;
+    private int standbyNext;
+    private int standbyLimit;
+
+    public BillIdAllocator(int counterId) {
+        this.counterId = counterId;
+    }
+
+    public int getCounterId() {
+        return counterId;
+    }
+
+    public synchronized int nextId(Connection connection) throws SQLException {
+        if (next >= limit) {
+            if (standbyNext < standbyLimit) {
+                next = standbyNext;
+                limit = standbyLimit;
+                standbyLimit = 0;
+            } else {
+                int hi = reserveBlock(connection);
+                next = hi * BLOCK_SIZE;
+                limit = next + BLOCK_SIZE;
+            }
+        }
+        if (standbyLimit == 0 && limit - next <= BLOCK_SIZE / 2) {
+            try {
+                int hi = reserveBlock(connection);
+                standbyNext = hi * BLOCK_SIZE;
+                standbyLimit = standbyNext + BLOCK_SIZE;
+            } catch (SQLException e) {
+                // No standby yet; retried on the next id
+            }
+        }
+        return next++;
+    }
+
+    private int reserveBlock(Connection connection) throws SQLException {
+        // LAST_INSERT_ID(expr) makes the increment and the read atomic for this connection
+        String reserveQuery = "UPDATE bill_id_blocks SET next_hi = LAST_INSERT_ID(next_hi + 1) WHERE id = 1";
+        try (PreparedStatement reserveStatement = connection.prepareStatement(reserveQuery)) {
+            if (reserveStatement.executeUpdate() == 0) {
+                throw new SQLException("bill_id_blocks is not initialised.");
+            }
+        }
+        try (PreparedStatement hiStatement = connection.prepareStatement("SELECT LAST_INSERT_ID()");
+             ResultSet resultSet = hiStatement.executeQuery()) {
+            if (!resultSet.next()) {
+                throw new SQLException("Reserving a bill id block failed for counter " + counterId + ".");
+            }
+            return resultSet.getInt(1) - 1;
+        }
+    }
+}
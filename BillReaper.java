@@ -0,0 +1,121 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Background task that clears abandoned bills: open carts nobody has touched within the TTL, and
+// placeholder bills (tot_quantity 0, total 1.00) left in the database by the old bill flow.
+// Database rows are deleted in bounded batches, each its own short statement. Only untouched
+// placeholders are matched: a legacy bill that had items added before it was abandoned no longer
+// looks like one and is left for clearing by hand.
+public class BillReaper {
+    public static final int DELETE_BATCH_SIZE = 500;
+
+    private final long ttlMillis;
+    private final long periodMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong reapedCarts = new AtomicLong();
+    private final AtomicLong releasedUnits = new AtomicLong();
+    private final AtomicLong reapedBills = new AtomicLong();
+    private final AtomicLong failedRuns = new AtomicLong();
+
+    public BillReaper(long ttlMillis, long periodMillis) {
+        this.ttlMillis = ttlMillis;
+        this.periodMillis = periodMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bill-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::runOnce, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    public void runOnce() {
+        runs.incrementAndGet();
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        reapCarts(cutoff);
+        // The reaper uses its own connection so it never interleaves with a till's transaction
+        try (Connection connection = DriverManager.getConnection(RetailShopBillingSystem.URL,
+                RetailShopBillingSystem.USER, RetailShopBillingSystem.PASSWORD)) {
+            reapPlaceholderBills(connection, cutoff);
+        } catch (SQLException e) {
+            failedRuns.incrementAndGet();
+            e.printStackTrace();
+        }
+    }
+
+    // Closing the cart gives its quantities back to the shelf; nothing was written for it yet.
+    // A cart taking a payment is held by the gateway and is left alone until the payment is over.
+    private void reapCarts(long cutoff) {
+        PaymentGateway paymentGateway = RetailShopBillingSystem.paymentGateway;
+        for (BillCart cart : BillCart.openCarts()) {
+            if (cart.getLastTouchedAt() >= cutoff || !paymentGateway.hold(cart.getBillId())) {
+                continue;
+            }
+            try {
+                if (BillCart.close(cart.getBillId()) != null) {
+                    reapedCarts.incrementAndGet();
+                    releasedUnits.addAndGet(cart.getTotalQuantity());
+                }
+            } finally {
+                paymentGateway.release(cart.getBillId());
+            }
+        }
+    }
+
+    private void reapPlaceholderBills(Connection connection, long cutoff) throws SQLException {
+        // bill_items of a reaped bill go with it through ON DELETE CASCADE
+        String deleteQuery = "DELETE FROM bills WHERE tot_quantity = 0 AND total = 1.00 AND bill_date < ? ORDER BY id LIMIT ?";
+        try (PreparedStatement deleteStatement = connection.prepareStatement(deleteQuery)) {
+            deleteStatement.setTimestamp(1, new Timestamp(cutoff));
+            deleteStatement.setInt(2, DELETE_BATCH_SIZE);
+            int deleted;
+            do {
+                deleted = deleteStatement.executeUpdate();
+                reapedBills.addAndGet(deleted);
+            } while (deleted == DELETE_BATCH_SIZE);
+        }
+    }
+
+    public long getRuns() {
+        return runs.get();
+    }
+
+    public long getReapedCarts() {
+        return reapedCarts.get();
+    }
+
+    public long getReleasedUnits() {
+        return releasedUnits.get();
+    }
+
+    public long getReapedBills() {
+        return reapedBills.get();
+    }
+
+    public long getFailedRuns() {
+        return failedRuns.get();
+    }
+
+    public void printMetrics() {
+        System.out.println("Abandoned Bill Metrics:");
+        System.out.printf("Reaper runs: %d | Failed runs: %d%n", getRuns(), getFailedRuns());
+        System.out.printf("Abandoned carts reaped: %d | Units released: %d%n", getReapedCarts(), getReleasedUnits());
+        System.out.printf("Placeholder bills deleted: %d%n", getReapedBills());
+        System.out.printf("Carts open now: %d%n", BillCart.openCarts().size());
+    }
+}
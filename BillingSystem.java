@@ -7,8 +7,6 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.time.LocalDate;
 import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class BillingSystem {
     private DatabaseManager dbManager;
@@ -82,31 +80,7 @@ public class BillingSystem {
         }
     }
     public static boolean isValidCustomerInput(String name, String email, String phone, String address) {
-        // Check if any field is empty
-        if (name == null || name.trim().isEmpty() ||
-            email == null || email.trim().isEmpty() ||
-            phone == null || phone.trim().isEmpty() ||
-            address == null || address.trim().isEmpty()) {
-            return false;
-        }
-
-        // Validate email format
-        String emailRegex = "^[A-Za-z0-9+_.-]+@[A-Za-z0-9.-]+$";
-        Pattern emailPattern = Pattern.compile(emailRegex);
-        Matcher emailMatcher = emailPattern.matcher(email);
-        if (!emailMatcher.matches()) {
-            return false;
-        }
-
-        // Validate phone number format (assuming a 10-digit phone number for this example)
-        String phoneRegex = "^[0-9]{10}$";
-        Pattern phonePattern = Pattern.compile(phoneRegex);
-        Matcher phoneMatcher = phonePattern.matcher(phone);
-        if (!phoneMatcher.matches()) {
-            return false;
-        }
-
-        return true;
+        return CustomerInputValidator.isValid(name, email, phone, address);
     }
     public static boolean isExistingEmail(Connection connection, String email) throws SQLException {
         String query = "SELECT COUNT(*) AS count FROM customers WHERE email = ?";
@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Append-only write-ahead journal of cart operations so open bills survive a till crash.
+// Each record is [length][crc32][type, billId, fields...]; edits carry the time they were made, so a
+// recovered cart keeps its last-activity time. Records are forced to disk every
+// FSYNC_EVERY_RECORDS records or FSYNC_INTERVAL_MILLIS, and always when a bill is closed. A background
+// flusher forces on the interval too, so a lull after a scan cannot leave records unsynced.
+// On startup the journal is replayed, bills already settled or untouched past the TTL are rolled back,
+// and the file is rewritten with only the surviving carts so recovery time stays bounded.
+public class CartJournal {
+    public static final int FSYNC_EVERY_RECORDS = 32;
+    public static final long FSYNC_INTERVAL_MILLIS = 200;
+
+    private static final byte OPEN = 1;
+    private static final byte ADD = 2;
+    private static final byte SET = 3;
+    private static final byte REMOVE = 4;
+    private static final byte CLOSE = 5;
+
+    private final Path file;
+    private FileChannel channel;
+    private int unsyncedRecords;
+    private int openBills;
+    private long lastSyncMillis = System.currentTimeMillis();
+    private ScheduledExecutorService flusher;
+
+    public CartJournal(Path file) {
+        this.file = file;
+    }
+
+    // Replays the journal into BillCart, then starts journaling new operations
+    public void recover(Connection connection, long ttlMillis) throws IOException, SQLException {
+        long start = System.nanoTime();
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Map<Integer, BillCart> carts = replay();
+
+        // Roll back bills that were settled before the crash or left untouched past the TTL, measured from
+        // the last edit as the reaper does
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        Set<Integer> settled = findSettledBills(connection, carts.keySet());
+        int rolledBack = 0;
+        List<BillCart> survivors = new ArrayList<>();
+        for (BillCart cart : carts.values()) {
+            if (settled.contains(cart.getBillId()) || cart.getLastTouchedAt() < cutoff) {
+                rolledBack++;
+            } else {
+                survivors.add(cart);
+            }
+        }
+
+        compact(survivors);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        for (BillCart cart : survivors) {
+            BillCart.register(cart);
+        }
+        BillCart.setJournal(this);
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cart-journal-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FSYNC_INTERVAL_MILLIS, FSYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        if (!carts.isEmpty()) {
+            System.out.printf("Recovered %d open bill(s) from the journal, rolled back %d, in %d ms.%n",
+                    survivors.size(), rolledBack, elapsedMillis);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // Forces records still waiting for the interval; appends only check it when the next record arrives
+    private synchronized void flush() {
+        if (channel == null || unsyncedRecords == 0) {
+            return;
+        }
+        try {
+            channel.force(false);
+            unsyncedRecords = 0;
+            lastSyncMillis = System.currentTimeMillis();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void logOpen(BillCart cart) {
+        ByteBuffer record = newRecord(OPEN, cart.getBillId(), 12);
+        record.putInt(cart.getCustomerId());
+        record.putLong(cart.getOpenedAt());
+        append(record, false, 1);
+    }
+
+    public void logAdd(int billId, int productId, String productName, double mrp, double rate, int quantity, long touchedAt) {
+        byte[] name = productName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = newRecord(ADD, billId, 34 + name.length);
+        record.putLong(touchedAt);
+        record.putInt(productId);
+        record.putInt(quantity);
+        record.putDouble(mrp);
+        record.putDouble(rate);
+        record.putShort((short) name.length);
+        record.put(name);
+        append(record, false, 0);
+    }
+
+    public void logSet(int billId, int productId, int quantity, long touchedAt) {
+        ByteBuffer record = newRecord(SET, billId, 16);
+        record.putLong(touchedAt);
+        record.putInt(productId);
+        record.putInt(quantity);
+        append(record, false, 0);
+    }
+
+    public void logRemove(int billId, int productId, long touchedAt) {
+        ByteBuffer record = newRecord(REMOVE, billId, 12);
+        record.putLong(touchedAt);
+        record.putInt(productId);
+        append(record, false, 0);
+    }
+
+    public void logClose(int billId) {
+        append(newRecord(CLOSE, billId, 0), true, -1);
+    }
+
+    private ByteBuffer newRecord(byte type, int billId, int fieldsLength) {
+        ByteBuffer record = ByteBuffer.allocate(8 + 5 + fieldsLength);
+        record.position(8);
+        record.put(type);
+        record.putInt(billId);
+        return record;
+    }
+
+    private synchronized void append(ByteBuffer record, boolean sync, int openBillsDelta) {
+        if (channel == null) {
+            return;
+        }
+        openBills += openBillsDelta;
+        int payloadLength = record.position() - 8;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, payloadLength);
+        record.putInt(0, payloadLength);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        try {
+            if (openBills == 0 && openBillsDelta < 0) {
+                // Nothing is in flight any more, so the whole journal can be dropped
+                channel.truncate(0);
+                channel.force(false);
+                unsyncedRecords = 0;
+                return;
+            }
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            unsyncedRecords++;
+            long now = System.currentTimeMillis();
+            if (sync || unsyncedRecords >= FSYNC_EVERY_RECORDS || now - lastSyncMillis >= FSYNC_INTERVAL_MILLIS) {
+                channel.force(false);
+                unsyncedRecords = 0;
+                lastSyncMillis = now;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Map<Integer, BillCart> replay() throws IOException {
+        Map<Integer, BillCart> carts = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return carts;
+        }
+        ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (journal.remaining() >= 8) {
+            int payloadLength = journal.getInt();
+            int expectedCrc = journal.getInt();
+            if (payloadLength < 5 || payloadLength > journal.remaining()) {
+                break; // torn write at the tail
+            }
+            CRC32 crc = new CRC32();
+            crc.update(journal.array(), journal.position(), payloadLength);
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            ByteBuffer payload = journal.slice();
+            payload.limit(payloadLength);
+            journal.position(journal.position() + payloadLength);
+            apply(carts, payload);
+        }
+        return carts;
+    }
+
+    private static void apply(Map<Integer, BillCart> carts, ByteBuffer payload) {
+        byte type = payload.get();
+        int billId = payload.getInt();
+        if (type == OPEN) {
+            int customerId = payload.getInt();
+            carts.put(billId, BillCart.restore(billId, customerId, payload.getLong()));
+            return;
+        }
+        BillCart cart = carts.get(billId);
+        if (cart == null) {
+            return;
+        }
+        if (type == CLOSE) {
+            carts.remove(billId);
+            return;
+        }
+        long touchedAt = payload.getLong();
+        if (type == ADD) {
+            int productId = payload.getInt();
+            int quantity = payload.getInt();
+            double mrp = payload.getDouble();
+            double rate = payload.getDouble();
+            byte[] name = new byte[payload.getShort()];
+            payload.get(name);
+            cart.add(productId, new String(name, StandardCharsets.UTF_8), mrp, rate, quantity);
+        } else if (type == SET) {
+            int productId = payload.getInt();
+            cart.setQuantity(productId, payload.getInt());
+        } else if (type == REMOVE) {
+            cart.remove(payload.getInt());
+        }
+        cart.restoreTouchedAt(touchedAt);
+    }
+
+    // A bill is settled if MySQL has it or it is waiting in the offline outbox, which is loaded before
+    // recovery; the crash may have come after it was queued but before its close was journaled
+    private static Set<Integer> findSettledBills(Connection connection, Set<Integer> billIds) throws SQLException {
+        Set<Integer> settled = new HashSet<>();
+        List<Integer> toCheck = new ArrayList<>();
+        for (int billId : billIds) {
+            if (RetailShopBillingSystem.offlineStore.isQueued(billId)) {
+                settled.add(billId);
+            } else {
+                toCheck.add(billId);
+            }
+        }
+        if (toCheck.isEmpty()) {
+            return settled;
+        }
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < toCheck.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        try (PreparedStatement statement = connection.prepareStatement("SELECT id FROM bills WHERE id IN (" + placeholders + ")")) {
+            for (int i = 0; i < toCheck.size(); i++) {
+                statement.setInt(i + 1, toCheck.get(i));
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    settled.add(resultSet.getInt("id"));
+                }
+            }
+        }
+        return settled;
+    }
+
+    // Rewrites the journal with just the surviving carts, then swaps it in atomically
+    private void compact(List<BillCart> survivors) throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel = out;
+            for (BillCart cart : survivors) {
+                logOpen(cart);
+                for (BillCart.Line line : cart.getLines()) {
+                    logAdd(cart.getBillId(), line.getProductId(), line.getProductName(), line.getMrp(), line.getRate(), line.getQuantity(),
+                            cart.getLastTouchedAt());
+                }
+            }
+            out.force(true);
+        } finally {
+            channel = null;
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Sparse co-purchase matrix: for every product, how often each other product was in the same bill.
+// Rows are primitive IntIntMaps fed by settled bills. A row that grows past twice TOP_K partners is
+// compacted down to its TOP_K strongest, which keeps memory bounded by products x 2 x TOP_K entries.
+// Saved on shutdown with the feed offset reached and caught up from the feed log on startup, like
+// SalesRollups, so bills settled after the last save are counted even if the till stopped uncleanly.
+// With no saved state the whole feed log is replayed.
+public class CoPurchaseIndex {
+    public static final int TOP_K = 32;
+
+    private final Path stateFile;
+    private final IntIntMap rowSlots = new IntIntMap(1024);
+    private final List<IntIntMap> rows = new ArrayList<>();
+
+    public CoPurchaseIndex(Path stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    // BillFeed subscriber: counts every pair of distinct products in the bill, both ways
+    public synchronized void onBill(BillEvent event) {
+        if (!BillEvent.SETTLED.equals(event.getType())) {
+            return;
+        }
+        int[] products = new int[event.getLineCount()];
+        for (int i = 0; i < products.length; i++) {
+            products[i] = event.getProductId(i);
+        }
+        for (int i = 0; i < products.length; i++) {
+            for (int j = 0; j < products.length; j++) {
+                if (products[i] != products[j]) {
+                    addPair(products[i], products[j], 1);
+                }
+            }
+        }
+    }
+
+    // Up to limit partners of the product, strongest first, as {partnerId, count}
+    public synchronized List<int[]> frequentlyBoughtWith(int productId, int limit) {
+        int slot = rowSlots.get(productId, -1);
+        if (slot < 0) {
+            return new ArrayList<>();
+        }
+        return strongest(rows.get(slot), limit);
+    }
+
+    public synchronized void load(BillFeedLog log) throws IOException {
+        long offset = 0;
+        if (Files.exists(stateFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile)))) {
+                offset = in.readLong();
+                int rowCount = in.readInt();
+                for (int i = 0; i < rowCount; i++) {
+                    int productId = in.readInt();
+                    int partners = in.readInt();
+                    for (int j = 0; j < partners; j++) {
+                        addPair(productId, in.readInt(), in.readInt());
+                    }
+                }
+            }
+        }
+        if (log != null) {
+            log.read(offset, Integer.MAX_VALUE, (eventOffset, event) -> onBill(event));
+        }
+    }
+
+    // Compacts every row to its top partners and writes the index out
+    public synchronized void save(BillFeedLog log) throws IOException {
+        if (stateFile.getParent() != null) {
+            Files.createDirectories(stateFile.getParent());
+        }
+        Path tmp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeLong(log != null ? log.endOffset() : 0);
+            out.writeInt(rowSlots.size());
+            IOException[] failure = new IOException[1];
+            rowSlots.forEach((productId, slot) -> {
+                List<int[]> partners = strongest(rows.get(slot), TOP_K);
+                try {
+                    out.writeInt(productId);
+                    out.writeInt(partners.size());
+                    for (int[] partner : partners) {
+                        out.writeInt(partner[0]);
+                        out.writeInt(partner[1]);
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void addPair(int productId, int partnerId, int count) {
+        int slot = rowSlots.get(productId, -1);
+        if (slot < 0) {
+            slot = rows.size();
+            rows.add(new IntIntMap(TOP_K));
+            rowSlots.put(productId, slot);
+        }
+        IntIntMap row = rows.get(slot);
+        row.add(partnerId, count);
+        if (row.size() > 2 * TOP_K) {
+            rows.set(slot, compact(row));
+        }
+    }
+
+    private static IntIntMap compact(IntIntMap row) {
+        IntIntMap kept = new IntIntMap(TOP_K);
+        for (int[] partner : strongest(row, TOP_K)) {
+            kept.put(partner[0], partner[1]);
+        }
+        return kept;
+    }
+
+    private static List<int[]> strongest(IntIntMap row, int limit) {
+        int[] partnerIds = new int[row.size()];
+        int[] counts = new int[row.size()];
+        int[] next = {0};
+        row.forEach((partnerId, count) -> {
+            partnerIds[next[0]] = partnerId;
+            counts[next[0]] = count;
+            next[0]++;
+        });
+        // Sort by count descending, ties by product id, packing both into one long per partner
+        long[] order = new long[next[0]];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = ((long) (Integer.MAX_VALUE - counts[i]) << 32) | (partnerIds[i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(order);
+        List<int[]> partners = new ArrayList<>();
+        for (int i = 0; i < order.length && i < limit; i++) {
+            int partnerId = (int) order[i];
+            partners.add(new int[] {partnerId, Integer.MAX_VALUE - (int) (order[i] >>> 32)});
+        }
+        return partners;
+    }
+}
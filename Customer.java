@@ -6,12 +6,23 @@ import java.sql.SQLException;
 public class Customer {
     private String customerId;
     private String name;
+    private String email;
+    private String phone;
+    private String address;
 
     public Customer(String customerId, String name) {
         this.customerId = customerId;
         this.name = name;
     }
 
+    public Customer(int customerId, String name, String email, String phone, String address) {
+        this.customerId = String.valueOf(customerId);
+        this.name = name;
+        this.email = email;
+        this.phone = phone;
+        this.address = address;
+    }
+
     public String getCustomerId() {
         return customerId;
     }
@@ -20,14 +31,21 @@ public class Customer {
         return name;
     }
 
+    public String getEmail() {
+        return email;
+    }
+
+    public String getPhone() {
+        return phone;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
     public static Customer getCustomerDetails(DatabaseManager dbManager, String customerId) {
         try {
-            String query = "SELECT * FROM customers WHERE customer_id = '" + customerId + "'";
-            ResultSet rs = dbManager.executeQuery(query);
-            if (rs.next()) {
-                String name = rs.getString("name");
-                return new Customer(customerId, name);
-            }
+            return CustomerCache.shared().findById(dbManager.getConnection(), Integer.parseInt(customerId));
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,164 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// Streams a CSV of customers (name,email,phone,address) into the customers table.
+// Rows are validated in parallel chunk by chunk, de-duplicated by email against the database
+// and the file itself, and written with multi-row INSERTs committed once per chunk.
+public class CustomerBulkImport {
+    public static final int CHUNK_SIZE = 10000;
+    public static final int ROWS_PER_INSERT = 500;
+
+    private long rowsRead;
+    private long rowsInvalid;
+    private long rowsDuplicate;
+    private long rowsInserted;
+
+    public static void importFile(Connection connection, Path file) throws IOException, SQLException {
+        CustomerBulkImport bulkImport = new CustomerBulkImport();
+        long start = System.nanoTime();
+        bulkImport.run(connection, file);
+        bulkImport.printSummary(System.nanoTime() - start);
+    }
+
+    private void run(Connection connection, Path file) throws IOException, SQLException {
+        Set<String> knownEmails = loadExistingEmails(connection);
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            List<String[]> chunk = new ArrayList<>(CHUNK_SIZE);
+            String line;
+            boolean firstLine = true;
+            while ((line = reader.readLine()) != null) {
+                if (firstLine) {
+                    firstLine = false;
+                    if (line.toLowerCase(Locale.ROOT).startsWith("name,")) {
+                        continue; // header row
+                    }
+                }
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                chunk.add(parseCsvLine(line));
+                rowsRead++;
+                if (chunk.size() == CHUNK_SIZE) {
+                    writeChunk(connection, chunk, knownEmails);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                writeChunk(connection, chunk, knownEmails);
+            }
+        } catch (IOException | SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void writeChunk(Connection connection, List<String[]> chunk, Set<String> knownEmails) throws SQLException {
+        boolean[] valid = CustomerInputValidator.validateAll(chunk);
+        List<String[]> accepted = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            if (!valid[i]) {
+                rowsInvalid++;
+            } else if (!knownEmails.add(chunk.get(i)[1].trim().toLowerCase(Locale.ROOT))) {
+                rowsDuplicate++;
+            } else {
+                accepted.add(chunk.get(i));
+            }
+        }
+
+        for (int from = 0; from < accepted.size(); from += ROWS_PER_INSERT) {
+            List<String[]> rows = accepted.subList(from, Math.min(from + ROWS_PER_INSERT, accepted.size()));
+            try (PreparedStatement statement = connection.prepareStatement(multiRowInsert(rows.size()))) {
+                int parameter = 1;
+                for (String[] row : rows) {
+                    statement.setString(parameter++, row[0].trim());
+                    statement.setString(parameter++, row[1].trim());
+                    statement.setString(parameter++, row[2].trim());
+                    statement.setString(parameter++, row[3].trim());
+                }
+                statement.executeUpdate();
+            }
+        }
+        connection.commit();
+        rowsInserted += accepted.size();
+
+        if (RetailShopBillingSystem.knownEmails != null) {
+            for (String[] row : accepted) {
+                RetailShopBillingSystem.knownEmails.put(row[1]);
+            }
+        }
+    }
+
+    private static Set<String> loadExistingEmails(Connection connection) throws SQLException {
+        Set<String> emails = new HashSet<>();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT email FROM customers WHERE email IS NOT NULL")) {
+            statement.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    emails.add(resultSet.getString(1).trim().toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return emails;
+    }
+
+    private static String multiRowInsert(int rows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO customers (name, email, phone, address) VALUES ");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+        }
+        return sql.toString();
+    }
+
+    // Splits one CSV line, honouring double-quoted fields with embedded commas and "" escapes
+    static String[] parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    private void printSummary(long elapsedNanos) {
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        System.out.println("Bulk Customer Import Summary:");
+        System.out.printf("Rows read: %d | Inserted: %d | Invalid: %d | Duplicate emails: %d%n",
+                rowsRead, rowsInserted, rowsInvalid, rowsDuplicate);
+        System.out.printf("Elapsed: %.2f s | Throughput: %.0f rows/s%n", seconds, seconds > 0 ? rowsRead / seconds : 0.0);
+    }
+}
@@ -0,0 +1,172 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Bounded LRU cache of customers with secondary indexes on email and phone.
+// Lookups fall back to MySQL on a miss and populate the cache; inserts write through.
+// Emails are unique but phones are not (a household shares one), so a phone maps to every cached
+// customer with it and phone lookups also match on the name.
+public class CustomerCache {
+    public static final int DEFAULT_CAPACITY = 50000;
+
+    private static final CustomerCache SHARED = new CustomerCache(DEFAULT_CAPACITY);
+
+    private static final String SELECT_COLUMNS = "SELECT id, name, email, phone, address FROM customers ";
+
+    private final int capacity;
+    private final LinkedHashMap<Integer, Customer> byId;
+    private final Map<String, Integer> byEmail = new HashMap<>();
+    private final Map<String, List<Integer>> byPhone = new HashMap<>();
+
+    public CustomerCache(int capacity) {
+        this.capacity = capacity;
+        // Access-ordered so the eldest entry is always the least recently used one
+        this.byId = new LinkedHashMap<Integer, Customer>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Customer> eldest) {
+                if (size() > CustomerCache.this.capacity) {
+                    unindex(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static CustomerCache shared() {
+        return SHARED;
+    }
+
+    public synchronized Customer getById(int customerId) {
+        return byId.get(customerId);
+    }
+
+    public synchronized Customer getByEmail(String email) {
+        Integer customerId = byEmail.get(emailKey(email));
+        return customerId == null ? null : byId.get(customerId);
+    }
+
+    // Names are compared case-insensitively, as MySQL does
+    public synchronized Customer getByPhone(String phone, String name) {
+        List<Integer> customerIds = byPhone.get(phone.trim());
+        if (customerIds == null) {
+            return null;
+        }
+        for (Integer customerId : customerIds) {
+            Customer customer = byId.get(customerId);
+            if (customer != null && customer.getName().equalsIgnoreCase(name.trim())) {
+                return customer;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void put(Customer customer) {
+        Integer customerId = Integer.valueOf(customer.getCustomerId());
+        Customer previous = byId.put(customerId, customer);
+        if (previous != null) {
+            unindex(previous);
+        }
+        if (customer.getEmail() != null) {
+            byEmail.put(emailKey(customer.getEmail()), customerId);
+        }
+        if (customer.getPhone() != null) {
+            byPhone.computeIfAbsent(customer.getPhone().trim(), key -> new ArrayList<>(1)).add(customerId);
+        }
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    public Customer findById(Connection connection, int customerId) throws SQLException {
+        Customer customer = getById(customerId);
+        if (customer == null) {
+            customer = load(connection, SELECT_COLUMNS + "WHERE id = ?", customerId);
+        }
+        return customer;
+    }
+
+    public Customer findByEmail(Connection connection, String email) throws SQLException {
+        Customer customer = getByEmail(email);
+        if (customer == null) {
+            customer = load(connection, SELECT_COLUMNS + "WHERE email = ?", email);
+        }
+        return customer;
+    }
+
+    // The cache may hold only some of the customers sharing the phone, so a miss still asks MySQL
+    public Customer findByPhone(Connection connection, String phone, String name) throws SQLException {
+        Customer customer = getByPhone(phone, name);
+        if (customer == null) {
+            customer = load(connection, SELECT_COLUMNS + "WHERE phone = ? AND name = ? ORDER BY id LIMIT 1", phone.trim(), name.trim());
+        }
+        return customer;
+    }
+
+    // Preloads the most recently registered customers so returning customers hit the cache from the first bill
+    public int warm(Connection connection) throws SQLException {
+        String query = SELECT_COLUMNS + "ORDER BY id DESC LIMIT ?";
+        int loaded = 0;
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setInt(1, capacity);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    put(toCustomer(resultSet));
+                    loaded++;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private Customer load(Connection connection, String query, Object... keys) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            for (int i = 0; i < keys.length; i++) {
+                statement.setObject(i + 1, keys[i]);
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    Customer customer = toCustomer(resultSet);
+                    put(customer);
+                    return customer;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void unindex(Customer customer) {
+        Integer customerId = Integer.valueOf(customer.getCustomerId());
+        if (customer.getEmail() != null) {
+            byEmail.remove(emailKey(customer.getEmail()), customerId);
+        }
+        if (customer.getPhone() != null) {
+            String phone = customer.getPhone().trim();
+            List<Integer> customerIds = byPhone.get(phone);
+            if (customerIds != null) {
+                customerIds.remove(customerId);
+                if (customerIds.isEmpty()) {
+                    byPhone.remove(phone);
+                }
+            }
+        }
+    }
+
+    private static Customer toCustomer(ResultSet resultSet) throws SQLException {
+        return new Customer(resultSet.getInt("id"), resultSet.getString("name"), resultSet.getString("email"),
+                resultSet.getString("phone"), resultSet.getString("address"));
+    }
+
+    // MySQL compares emails case-insensitively, so the index does too
+    private static String emailKey(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+}
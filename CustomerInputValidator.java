@@ -0,0 +1,68 @@
+import java.util.List;
+import java.util.stream.IntStream;
+
+// Validates customer sign-up fields with allocation-free scanners instead of regular expressions.
+// The rules match the original patterns: email ^[A-Za-z0-9+_.-]+@[A-Za-z0-9.-]+$ and phone ^[0-9]{10}$.
+public final class CustomerInputValidator {
+    public static final int PHONE_LENGTH = 10;
+
+    private CustomerInputValidator() {
+    }
+
+    public static boolean isValid(String name, String email, String phone, String address) {
+        // Check if any field is empty
+        if (isBlank(name) || isBlank(email) || isBlank(phone) || isBlank(address)) {
+            return false;
+        }
+        return isValidEmail(email) && isValidPhone(phone);
+    }
+
+    // Validates rows of {name, email, phone, address} in parallel; result[i] is true when rows.get(i) is valid
+    public static boolean[] validateAll(List<String[]> rows) {
+        boolean[] results = new boolean[rows.size()];
+        IntStream.range(0, rows.size()).parallel().forEach(i -> {
+            String[] row = rows.get(i);
+            results[i] = row != null && row.length >= 4 && isValid(row[0], row[1], row[2], row[3]);
+        });
+        return results;
+    }
+
+    public static boolean isValidEmail(String email) {
+        int length = email.length();
+        int at = -1;
+        for (int i = 0; i < length; i++) {
+            char c = email.charAt(i);
+            if (c == '@') {
+                if (at >= 0) {
+                    return false;
+                }
+                at = i;
+            } else if (!isAlphanumeric(c) && c != '.' && c != '-' && (at >= 0 || (c != '+' && c != '_'))) {
+                // '+' and '_' are only allowed before the '@'
+                return false;
+            }
+        }
+        return at > 0 && at < length - 1;
+    }
+
+    public static boolean isValidPhone(String phone) {
+        if (phone.length() != PHONE_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < PHONE_LENGTH; i++) {
+            char c = phone.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAlphanumeric(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Spending profile per customer: total spend, bill count, first and last purchase, and the number of
+// months with a purchase (for the average monthly spend). Columns are primitive arrays indexed through
+// an IntIntMap, updated from the bill feed on every settlement. The first run builds the profiles with
+// one aggregate query over bills; after that they are saved on shutdown and caught up from the feed log.
+// The feed only carries this till's bills, so a profile shown on its own is read from bills instead.
+public class CustomerProfiles {
+    private final Path stateFile;
+    private final IntIntMap slots = new IntIntMap(1024);
+    private int[] customerIds = new int[1024];
+    private double[] totalSpend = new double[1024];
+    private int[] billCount = new int[1024];
+    private long[] firstPurchase = new long[1024];
+    private long[] lastPurchase = new long[1024];
+    private int[] activeMonths = new int[1024];
+    private int[] lastMonth = new int[1024];
+    private int count;
+
+    public CustomerProfiles(Path stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    // Read-only view of one customer's profile
+    public static class Profile {
+        public final int customerId;
+        public final double totalSpend;
+        public final int billCount;
+        public final long firstPurchase;
+        public final long lastPurchase;
+        public final int activeMonths;
+
+        Profile(int customerId, double totalSpend, int billCount, long firstPurchase, long lastPurchase, int activeMonths) {
+            this.customerId = customerId;
+            this.totalSpend = totalSpend;
+            this.billCount = billCount;
+            this.firstPurchase = firstPurchase;
+            this.lastPurchase = lastPurchase;
+            this.activeMonths = activeMonths;
+        }
+
+        public double getAverageBill() {
+            return billCount == 0 ? 0 : totalSpend / billCount;
+        }
+
+        public double getAverageMonthlySpend() {
+            return activeMonths == 0 ? 0 : totalSpend / activeMonths;
+        }
+    }
+
+    // BillFeed subscriber
+    public synchronized void onBill(BillEvent event) {
+        if (BillEvent.REFUNDED.equals(event.getType())) {
+            // A return lowers what the customer spent; the visit still counts
+            totalSpend[slotFor(event.getCustomerId())] -= event.getTotal();
+            return;
+        }
+        if (!BillEvent.SETTLED.equals(event.getType())) {
+            return;
+        }
+        int slot = slotFor(event.getCustomerId());
+        long at = event.getOccurredAt();
+        int month = monthOf(at);
+        totalSpend[slot] += event.getTotal();
+        billCount[slot]++;
+        if (firstPurchase[slot] == 0 || at < firstPurchase[slot]) {
+            firstPurchase[slot] = at;
+        }
+        if (at > lastPurchase[slot]) {
+            lastPurchase[slot] = at;
+        }
+        // Bills arrive in time order, so a month is new when it is past the last one counted
+        if (month > lastMonth[slot]) {
+            activeMonths[slot]++;
+            lastMonth[slot] = month;
+        }
+    }
+
+    // O(1); null if the customer has never settled a bill
+    public synchronized Profile get(int customerId) {
+        int slot = slots.get(customerId, -1);
+        if (slot < 0) {
+            return null;
+        }
+        return new Profile(customerId, totalSpend[slot], billCount[slot], firstPurchase[slot], lastPurchase[slot], activeMonths[slot]);
+    }
+
+    // One customer's profile read straight from bills, which every till writes to, so it includes bills
+    // settled at other counters; a single range of idx_bills_customer_date. Null if the customer has no
+    // bills. The stored profile is left alone, since this till's feed may not have delivered them all yet.
+    public Profile read(Connection connection, int customerId) throws SQLException {
+        String query = "SELECT SUM(total) AS total_spend, COUNT(*) AS bill_count, " +
+                "MIN(bill_date) AS first_purchase, MAX(bill_date) AS last_purchase, " +
+                "COUNT(DISTINCT DATE_FORMAT(bill_date, '%Y-%m')) AS active_months " +
+                "FROM bills WHERE customer_id = ?";
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setInt(1, customerId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next() || resultSet.getInt("bill_count") == 0) {
+                    return null;
+                }
+                return new Profile(customerId, resultSet.getDouble("total_spend"), resultSet.getInt("bill_count"),
+                        resultSet.getTimestamp("first_purchase").getTime(), resultSet.getTimestamp("last_purchase").getTime(),
+                        resultSet.getInt("active_months"));
+            }
+        }
+    }
+
+    // Scores every customer 1-5 on recency, frequency and monetary value by quintile and counts each segment
+    public synchronized Map<String, double[]> segment(long now) {
+        double[] recency = new double[count];
+        double[] frequency = new double[count];
+        double[] monetary = new double[count];
+        for (int i = 0; i < count; i++) {
+            // More recent is better, so recency is scored on the negated age
+            recency[i] = -(now - lastPurchase[i]);
+            frequency[i] = billCount[i];
+            monetary[i] = totalSpend[i];
+        }
+        int[] recencyScores = quintileScores(recency);
+        int[] frequencyScores = quintileScores(frequency);
+        int[] monetaryScores = quintileScores(monetary);
+
+        // Segment name -> {customers, total spend}
+        Map<String, double[]> segments = new LinkedHashMap<>();
+        for (String name : new String[] {"Champions", "Loyal", "New", "At Risk", "Hibernating", "Needs Attention"}) {
+            segments.put(name, new double[2]);
+        }
+        for (int i = 0; i < count; i++) {
+            int r = recencyScores[i];
+            int f = frequencyScores[i];
+            int m = monetaryScores[i];
+            String name;
+            if (r >= 4 && f >= 4 && m >= 4) {
+                name = "Champions";
+            } else if (f >= 4) {
+                name = r <= 2 ? "At Risk" : "Loyal";
+            } else if (r >= 4 && f <= 2) {
+                name = "New";
+            } else if (r <= 2 && f <= 2) {
+                name = "Hibernating";
+            } else {
+                name = "Needs Attention";
+            }
+            double[] segment = segments.get(name);
+            segment[0]++;
+            segment[1] += totalSpend[i];
+        }
+        return segments;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // Loads the saved profiles and catches up from the feed log, or builds them from bills on the first run
+    public synchronized void load(Connection connection, BillFeedLog log) throws SQLException, IOException {
+        if (!Files.exists(stateFile)) {
+            build(connection);
+            // Everything in the feed log so far is already in bills
+            save(log);
+            return;
+        }
+        long offset;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile)))) {
+            offset = in.readLong();
+            int customers = in.readInt();
+            for (int i = 0; i < customers; i++) {
+                int slot = slotFor(in.readInt());
+                totalSpend[slot] = in.readDouble();
+                billCount[slot] = in.readInt();
+                firstPurchase[slot] = in.readLong();
+                lastPurchase[slot] = in.readLong();
+                activeMonths[slot] = in.readInt();
+                lastMonth[slot] = in.readInt();
+            }
+        }
+        if (log != null) {
+            log.read(offset, Integer.MAX_VALUE, (eventOffset, event) -> onBill(event));
+        }
+    }
+
+    public synchronized void save(BillFeedLog log) throws IOException {
+        if (stateFile.getParent() != null) {
+            Files.createDirectories(stateFile.getParent());
+        }
+        Path tmp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeLong(log != null ? log.endOffset() : 0);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(customerIds[i]);
+                out.writeDouble(totalSpend[i]);
+                out.writeInt(billCount[i]);
+                out.writeLong(firstPurchase[i]);
+                out.writeLong(lastPurchase[i]);
+                out.writeInt(activeMonths[i]);
+                out.writeInt(lastMonth[i]);
+            }
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void build(Connection connection) throws SQLException {
+        String query = "SELECT customer_id, SUM(total) AS total_spend, COUNT(*) AS bill_count, " +
+                "MIN(bill_date) AS first_purchase, MAX(bill_date) AS last_purchase, " +
+                "COUNT(DISTINCT DATE_FORMAT(bill_date, '%Y-%m')) AS active_months " +
+                "FROM bills GROUP BY customer_id";
+        try (PreparedStatement statement = connection.prepareStatement(query);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                int slot = slotFor(resultSet.getInt("customer_id"));
+                totalSpend[slot] = resultSet.getDouble("total_spend");
+                billCount[slot] = resultSet.getInt("bill_count");
+                firstPurchase[slot] = resultSet.getTimestamp("first_purchase").getTime();
+                lastPurchase[slot] = resultSet.getTimestamp("last_purchase").getTime();
+                activeMonths[slot] = resultSet.getInt("active_months");
+                lastMonth[slot] = monthOf(lastPurchase[slot]);
+            }
+        }
+    }
+
+    private int slotFor(int customerId) {
+        int slot = slots.get(customerId, -1);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (count == customerIds.length) {
+            int capacity = count * 2;
+            customerIds = Arrays.copyOf(customerIds, capacity);
+            totalSpend = Arrays.copyOf(totalSpend, capacity);
+            billCount = Arrays.copyOf(billCount, capacity);
+            firstPurchase = Arrays.copyOf(firstPurchase, capacity);
+            lastPurchase = Arrays.copyOf(lastPurchase, capacity);
+            activeMonths = Arrays.copyOf(activeMonths, capacity);
+            lastMonth = Arrays.copyOf(lastMonth, capacity);
+        }
+        slot = count++;
+        customerIds[slot] = customerId;
+        slots.put(customerId, slot);
+        return slot;
+    }
+
+    private static int monthOf(long millis) {
+        LocalDateTime at = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        return at.getYear() * 12 + at.getMonthValue() - 1;
+    }
+
+    // Scores each value 1-5 by its rank: the quintile holding the share of values strictly below it.
+    // Equal values share the lowest rank among them, so a crowd of ties (most customers on one bill)
+    // stays in the quintile where it starts instead of being lifted past the customers above it.
+    private static int[] quintileScores(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int[] scores = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            int below = lowerBound(sorted, values[i]);
+            scores[i] = 1 + (int) ((long) below * 5 / sorted.length);
+        }
+        return scores;
+    }
+
+    // Index of the first element not less than value
+    private static int lowerBound(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,130 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+// Customer spending report fetched a page at a time with keyset pagination: each page continues
+// after the sort key and id of the last row seen, so later pages cost the same as the first and no
+// cursor is held open between them. Sorting, the address filter and the bill date range all run in SQL.
+// The per-customer aggregate is read from a covering index: idx_bills_customer_date over all time, and
+// idx_bills_date_customer when a date range is given, since the other index leads with customer_id.
+public class CustomerReport {
+    public enum SortBy {
+        SPENDING("COALESCE(t.total_spending, 0)"),
+        BILLS("COALESCE(t.bill_count, 0)"),
+        LAST_PURCHASE("COALESCE(t.last_purchase, TIMESTAMP('1970-01-01 00:00:01'))");
+
+        private final String expression;
+
+        SortBy(String expression) {
+            this.expression = expression;
+        }
+    }
+
+    public static class Row {
+        public final int customerId;
+        public final String name;
+        public final String email;
+        public final String phone;
+        public final String address;
+        public final double totalSpending;
+        public final int billCount;
+        public final Timestamp lastPurchase;
+
+        Row(ResultSet resultSet) throws SQLException {
+            customerId = resultSet.getInt("id");
+            name = resultSet.getString("name");
+            email = resultSet.getString("email");
+            phone = resultSet.getString("phone");
+            address = resultSet.getString("address");
+            totalSpending = resultSet.getDouble("total_spending");
+            billCount = resultSet.getInt("bill_count");
+            lastPurchase = resultSet.getTimestamp("last_purchase");
+        }
+    }
+
+    private final SortBy sortBy;
+    private final String address;
+    private final LocalDate from;
+    private final LocalDate to;
+    private final int pageSize;
+
+    // Where the next page starts; null before the first page
+    private Object lastSortKey;
+    private int lastCustomerId;
+    private boolean hasMore = true;
+
+    // address, from and to may be null for no filter; the date range is inclusive
+    public CustomerReport(SortBy sortBy, String address, LocalDate from, LocalDate to, int pageSize) {
+        this.sortBy = sortBy;
+        this.address = address;
+        this.from = from;
+        this.to = to;
+        this.pageSize = pageSize;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    public List<Row> nextPage(Connection connection) throws SQLException {
+        List<Row> page = new ArrayList<>();
+        if (!hasMore) {
+            return page;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(buildQuery(lastSortKey != null))) {
+            int index = 1;
+            if (from != null) {
+                statement.setTimestamp(index++, Timestamp.valueOf(from.atStartOfDay()));
+            }
+            if (to != null) {
+                statement.setTimestamp(index++, Timestamp.valueOf(to.plusDays(1).atStartOfDay()));
+            }
+            if (address != null) {
+                statement.setString(index++, "%" + address + "%");
+            }
+            if (lastSortKey != null) {
+                statement.setObject(index++, lastSortKey);
+                statement.setObject(index++, lastSortKey);
+                statement.setInt(index++, lastCustomerId);
+            }
+            // One extra row tells whether another page follows
+            statement.setInt(index, pageSize + 1);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                int fetched = 0;
+                while (resultSet.next() && ++fetched <= pageSize) {
+                    page.add(new Row(resultSet));
+                    lastSortKey = resultSet.getObject("sort_key");
+                    lastCustomerId = resultSet.getInt("id");
+                }
+                hasMore = fetched > pageSize;
+            }
+        }
+        return page;
+    }
+
+    private String buildQuery(boolean afterKey) {
+        StringBuilder billFilter = new StringBuilder();
+        if (from != null) {
+            billFilter.append(billFilter.length() == 0 ? " WHERE " : " AND ").append("bill_date >= ?");
+        }
+        if (to != null) {
+            billFilter.append(billFilter.length() == 0 ? " WHERE " : " AND ").append("bill_date < ?");
+        }
+        return "SELECT * FROM (" +
+                "SELECT c.id, c.name, c.email, c.phone, c.address, " +
+                "COALESCE(t.total_spending, 0) AS total_spending, COALESCE(t.bill_count, 0) AS bill_count, " +
+                "t.last_purchase, " + sortBy.expression + " AS sort_key " +
+                "FROM customers c LEFT JOIN (" +
+                "SELECT customer_id, SUM(total) AS total_spending, COUNT(*) AS bill_count, MAX(bill_date) AS last_purchase " +
+                "FROM bills" + billFilter + " GROUP BY customer_id) t ON t.customer_id = c.id" +
+                (address != null ? " WHERE c.address LIKE ?" : "") +
+                ") r" +
+                (afterKey ? " WHERE (r.sort_key < ? OR (r.sort_key = ? AND r.id > ?))" : "") +
+                " ORDER BY r.sort_key DESC, r.id LIMIT ?";
+    }
+}
@@ -0,0 +1,430 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// End-of-day close. Per business day and counter it keeps bill counts, sales and refunds per tender,
+// and units sold, returned and restocked per product, updated from the bill feed as bills settle, so
+// closing the day only formats what is already in memory. Totals are saved on shutdown with the feed
+// offset and caught up from the feed log on startup; restocks do not go through the feed, so each one
+// is appended to restocks.log as it happens. Days older than KEEP_DAYS are dropped on load.
+//
+// A Z-report is a text file signed with HMAC-SHA256 under a key kept next to the totals. It is linked
+// into place only if no report for that counter and day exists yet, then made read-only, so an issued
+// report is never replaced. Check one with: java DayClose verify <report>
+public class DayClose {
+    public static final int KEEP_DAYS = 35;
+    private static final String SIGNATURE_PREFIX = "HMAC-SHA256: ";
+
+    private final Path stateFile;
+    private final Path restockLog;
+    private final Path keyFile;
+    private final Path reportDirectory;
+    // (epoch day, counter) -> totals
+    private final Map<Long, CounterDay> days = new HashMap<>();
+
+    public DayClose(Path stateDirectory, Path reportDirectory) {
+        this.stateFile = stateDirectory.resolve("dayclose.dat");
+        this.restockLog = stateDirectory.resolve("restocks.log");
+        this.keyFile = stateDirectory.resolve("zreport.key");
+        this.reportDirectory = reportDirectory;
+    }
+
+    // One counter's business day
+    static class CounterDay {
+        int bills;
+        int splitBills;
+        int itemsSold;
+        double sales;
+        int refunds;
+        int itemsReturned;
+        double refunded;
+        int firstBillId;
+        int lastBillId;
+        long firstAt;
+        long lastAt;
+        // Tender -> {sales, sales count, refunds, refund count}
+        final Map<String, double[]> tenders = new TreeMap<>();
+        final IntIntMap sold = new IntIntMap(64);
+        final IntIntMap returned = new IntIntMap(16);
+        final IntIntMap restocked = new IntIntMap(16);
+
+        double[] tender(String method) {
+            return tenders.computeIfAbsent(method, key -> new double[4]);
+        }
+    }
+
+    // BillFeed subscriber
+    public synchronized void onBill(BillEvent event) {
+        if (BillEvent.REFUNDED.equals(event.getType())) {
+            // Counted on the day the goods came back, whenever they were sold
+            CounterDay day = dayFor(event.getOccurredAt(), event.getCounterId());
+            day.refunds++;
+            day.itemsReturned += event.getTotalQuantity();
+            day.refunded += event.getTotal();
+            double[] tender = day.tender(event.getPaymentMethod());
+            tender[2] += event.getTotal();
+            tender[3]++;
+            for (int i = 0; i < event.getLineCount(); i++) {
+                day.returned.add(event.getProductId(i), event.getQuantity(i));
+            }
+            return;
+        }
+        if (!BillEvent.SETTLED.equals(event.getType())) {
+            return;
+        }
+        CounterDay day = dayFor(event.getOccurredAt(), event.getCounterId());
+        day.bills++;
+        if (event.getTenderCount() > 1) {
+            day.splitBills++;
+        }
+        day.itemsSold += event.getTotalQuantity();
+        day.sales += event.getTotal();
+        if (day.firstAt == 0 || event.getOccurredAt() < day.firstAt) {
+            day.firstAt = event.getOccurredAt();
+            day.firstBillId = event.getBillId();
+        }
+        if (event.getOccurredAt() >= day.lastAt) {
+            day.lastAt = event.getOccurredAt();
+            day.lastBillId = event.getBillId();
+        }
+        for (int i = 0; i < event.getTenderCount(); i++) {
+            double[] tender = day.tender(event.getTenderMethod(i));
+            tender[0] += event.getTenderAmount(i);
+            tender[1]++;
+        }
+        for (int i = 0; i < event.getLineCount(); i++) {
+            day.sold.add(event.getProductId(i), event.getQuantity(i));
+        }
+    }
+
+    // Stock added on this counter from the restocking menu
+    public synchronized void onRestock(int counterId, int productId, int quantity) {
+        long now = System.currentTimeMillis();
+        dayFor(now, counterId).restocked.add(productId, quantity);
+        String line = now + " " + counterId + " " + productId + " " + quantity + System.lineSeparator();
+        try {
+            Files.createDirectories(restockLog.getParent());
+            Files.write(restockLog, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Loads the saved totals, catches up from the feed log and reads back the restocks
+    public synchronized void load(BillFeedLog log) throws IOException {
+        long offset = 0;
+        if (Files.exists(stateFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile)))) {
+                offset = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long key = in.readLong();
+                    CounterDay day = new CounterDay();
+                    day.bills = in.readInt();
+                    day.splitBills = in.readInt();
+                    day.itemsSold = in.readInt();
+                    day.sales = in.readDouble();
+                    day.refunds = in.readInt();
+                    day.itemsReturned = in.readInt();
+                    day.refunded = in.readDouble();
+                    day.firstBillId = in.readInt();
+                    day.lastBillId = in.readInt();
+                    day.firstAt = in.readLong();
+                    day.lastAt = in.readLong();
+                    int tenderCount = in.readInt();
+                    for (int j = 0; j < tenderCount; j++) {
+                        double[] tender = day.tender(in.readUTF());
+                        for (int k = 0; k < tender.length; k++) {
+                            tender[k] = in.readDouble();
+                        }
+                    }
+                    readCounts(in, day.sold);
+                    readCounts(in, day.returned);
+                    days.put(key, day);
+                }
+            }
+        }
+        if (log != null) {
+            log.read(offset, Integer.MAX_VALUE, (eventOffset, event) -> onBill(event));
+        }
+        if (Files.exists(restockLog)) {
+            for (String line : Files.readAllLines(restockLog, StandardCharsets.UTF_8)) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length == 4) {
+                    dayFor(Long.parseLong(fields[0]), Integer.parseInt(fields[1]))
+                            .restocked.add(Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+                }
+            }
+        }
+        long oldest = LocalDate.now().minusDays(KEEP_DAYS).toEpochDay();
+        days.keySet().removeIf(key -> (key >> 32) < oldest);
+    }
+
+    // Restocked counts are not written here; restocks.log already holds them
+    public synchronized void save(BillFeedLog log) throws IOException {
+        Files.createDirectories(stateFile.getParent());
+        Path tmp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeLong(log != null ? log.endOffset() : 0);
+            out.writeInt(days.size());
+            for (Map.Entry<Long, CounterDay> entry : days.entrySet()) {
+                CounterDay day = entry.getValue();
+                out.writeLong(entry.getKey());
+                out.writeInt(day.bills);
+                out.writeInt(day.splitBills);
+                out.writeInt(day.itemsSold);
+                out.writeDouble(day.sales);
+                out.writeInt(day.refunds);
+                out.writeInt(day.itemsReturned);
+                out.writeDouble(day.refunded);
+                out.writeInt(day.firstBillId);
+                out.writeInt(day.lastBillId);
+                out.writeLong(day.firstAt);
+                out.writeLong(day.lastAt);
+                out.writeInt(day.tenders.size());
+                for (Map.Entry<String, double[]> tender : day.tenders.entrySet()) {
+                    out.writeUTF(tender.getKey());
+                    for (double value : tender.getValue()) {
+                        out.writeDouble(value);
+                    }
+                }
+                writeCounts(out, day.sold);
+                writeCounts(out, day.returned);
+            }
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Writes and signs the Z-report for the counter's day; fails if one was already issued
+    public Path writeZReport(Connection connection, int counterId, LocalDate date) throws IOException, GeneralSecurityException {
+        String report;
+        synchronized (this) {
+            report = format(connection, counterId, date, days.getOrDefault(key(date.toEpochDay(), counterId), new CounterDay()));
+        }
+        byte[] body = report.getBytes(StandardCharsets.UTF_8);
+        byte[] signed = (report + SIGNATURE_PREFIX + toHex(sign(body)) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+
+        Files.createDirectories(reportDirectory);
+        Path file = reportDirectory.resolve("z-counter" + counterId + "-" + date + ".txt");
+        if (Files.exists(file)) {
+            throw new FileAlreadyExistsException(file.toString(), null, "A Z-report was already issued for this day");
+        }
+        Path tmp = Files.createTempFile(reportDirectory, "z-", ".tmp");
+        try {
+            Files.write(tmp, signed, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+            makeReadOnly(tmp);
+            // A hard link appears atomically and refuses an existing name, unlike a rename
+            Files.createLink(file, tmp);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return file;
+    }
+
+    // True if the report's last line is a valid signature over everything before it
+    public boolean verify(Path report) throws IOException, GeneralSecurityException {
+        String text = new String(Files.readAllBytes(report), StandardCharsets.UTF_8);
+        int start = text.lastIndexOf(SIGNATURE_PREFIX);
+        if (start < 0) {
+            return false;
+        }
+        byte[] expected = sign(text.substring(0, start).getBytes(StandardCharsets.UTF_8));
+        byte[] actual = fromHex(text.substring(start + SIGNATURE_PREFIX.length()).trim());
+        return actual != null && MessageDigest.isEqual(expected, actual);
+    }
+
+    private String format(Connection connection, int counterId, LocalDate date, CounterDay day) {
+        StringBuilder out = new StringBuilder();
+        DateTimeFormatter time = DateTimeFormatter.ofPattern("HH:mm:ss");
+        String line = "------------------------------------------------------------------" + System.lineSeparator();
+        out.append("Nellai Mart - Z-Report").append(System.lineSeparator());
+        out.append(String.format("Counter: %d   Business date: %s%n", counterId, date));
+        out.append(String.format("Z number: %d   Generated: %s%n", nextZNumber(counterId), LocalDateTime.now().withNano(0)));
+        if (day.bills > 0) {
+            out.append(String.format("Bills %d to %d, %s to %s%n", day.firstBillId, day.lastBillId,
+                    toLocal(day.firstAt).format(time), toLocal(day.lastAt).format(time)));
+        }
+        out.append(line);
+        out.append(String.format("%-24s %10d%n", "Bills", day.bills));
+        out.append(String.format("%-24s %10d%n", "Split-tender bills", day.splitBills));
+        out.append(String.format("%-24s %10d%n", "Items sold", day.itemsSold));
+        out.append(String.format("%-24s %10.2f%n", "Gross sales", day.sales));
+        out.append(String.format("%-24s %10d%n", "Refunds", day.refunds));
+        out.append(String.format("%-24s %10d%n", "Items returned", day.itemsReturned));
+        out.append(String.format("%-24s %10.2f%n", "Refunded", day.refunded));
+        out.append(String.format("%-24s %10.2f%n", "Net sales", day.sales - day.refunded));
+        out.append(line);
+        out.append(String.format("%-14s %12s %6s %12s %6s %12s%n", "Tender", "Sales", "Count", "Refunds", "Count", "Net"));
+        for (Map.Entry<String, double[]> entry : day.tenders.entrySet()) {
+            double[] tender = entry.getValue();
+            out.append(String.format("%-14s %12.2f %6d %12.2f %6d %12.2f%n", entry.getKey(), tender[0], (int) tender[1],
+                    tender[2], (int) tender[3], tender[0] - tender[2]));
+        }
+        out.append(line);
+
+        // Product ids that moved, with names when the database is reachable
+        TreeMap<Integer, int[]> movements = new TreeMap<>();
+        day.sold.forEach((productId, units) -> movements.computeIfAbsent(productId, key -> new int[3])[0] = units);
+        day.returned.forEach((productId, units) -> movements.computeIfAbsent(productId, key -> new int[3])[1] = units);
+        day.restocked.forEach((productId, units) -> movements.computeIfAbsent(productId, key -> new int[3])[2] = units);
+        Map<Integer, String> names = Collections.emptyMap();
+        if (!movements.isEmpty() && connection != null) {
+            int[] productIds = new int[movements.size()];
+            int i = 0;
+            for (int productId : movements.keySet()) {
+                productIds[i++] = productId;
+            }
+            try {
+                names = RetailShopBillingSystem.getProductNames(connection, productIds);
+            } catch (SQLException e) {
+                // Ids alone still reconcile
+            }
+        }
+        out.append("Stock movements").append(System.lineSeparator());
+        out.append(String.format("%-8s %-24s %8s %8s %10s %8s%n", "ID", "Product", "Sold", "Returned", "Restocked", "Net"));
+        for (Map.Entry<Integer, int[]> entry : movements.entrySet()) {
+            int[] units = entry.getValue();
+            out.append(String.format("%-8d %-24s %8d %8d %10d %8d%n", entry.getKey(), names.getOrDefault(entry.getKey(), ""),
+                    units[0], units[1], units[2], units[2] + units[1] - units[0]));
+        }
+        out.append(line);
+        return out.toString();
+    }
+
+    private int nextZNumber(int counterId) {
+        int issued = 0;
+        if (Files.isDirectory(reportDirectory)) {
+            try (DirectoryStream<Path> reports = Files.newDirectoryStream(reportDirectory, "z-counter" + counterId + "-*.txt")) {
+                for (Path ignored : reports) {
+                    issued++;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return issued + 1;
+    }
+
+    private byte[] sign(byte[] body) throws IOException, GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(loadKey(), "HmacSHA256"));
+        return mac.doFinal(body);
+    }
+
+    // Created on first use, readable by the owner only where the file system allows
+    private synchronized byte[] loadKey() throws IOException {
+        if (Files.exists(keyFile)) {
+            return Files.readAllBytes(keyFile);
+        }
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        Files.createDirectories(keyFile.getParent());
+        Files.write(keyFile, key, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            Files.setPosixFilePermissions(keyFile, PosixFilePermissions.fromString("r--------"));
+        } catch (UnsupportedOperationException e) {
+            keyFile.toFile().setReadOnly();
+        }
+        return key;
+    }
+
+    private static void makeReadOnly(Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("r--r--r--"));
+        } catch (UnsupportedOperationException e) {
+            file.toFile().setReadOnly();
+        }
+    }
+
+    private CounterDay dayFor(long millis, int counterId) {
+        return days.computeIfAbsent(key(toLocal(millis).toLocalDate().toEpochDay(), counterId), key -> new CounterDay());
+    }
+
+    private static long key(long epochDay, int counterId) {
+        return (epochDay << 32) | (counterId & 0xFFFFFFFFL);
+    }
+
+    private static LocalDateTime toLocal(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    private static void writeCounts(DataOutputStream out, IntIntMap counts) throws IOException {
+        List<int[]> entries = new ArrayList<>();
+        counts.forEach((key, value) -> entries.add(new int[] {key, value}));
+        out.writeInt(entries.size());
+        for (int[] entry : entries) {
+            out.writeInt(entry[0]);
+            out.writeInt(entry[1]);
+        }
+    }
+
+    private static void readCounts(DataInputStream in, IntIntMap counts) throws IOException {
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            counts.put(in.readInt(), in.readInt());
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2 || !"verify".equals(args[0])) {
+            System.out.println("Usage: java DayClose verify <report>");
+            return;
+        }
+        DayClose dayClose = new DayClose(Paths.get(System.getProperty("analytics.dir", "analytics")),
+                Paths.get(System.getProperty("zreport.dir", "zreports")));
+        System.out.println(dayClose.verify(Paths.get(args[1])) ? "Signature valid." : "Signature INVALID: the report has been altered.");
+    }
+}
@@ -0,0 +1,82 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+
+// Bloom filter over known customer emails. A negative answer means the email is definitely new;
+// a positive answer only means it might exist and has to be confirmed against the database.
+public class EmailBloomFilter {
+    private final long[] bits;
+    private final long numBits;
+    private final int numHashes;
+
+    public EmailBloomFilter(long expectedEmails, double falsePositiveRate) {
+        long expected = Math.max(1, expectedEmails);
+        long optimalBits = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bits = new long[(int) ((Math.max(64, optimalBits) + 63) / 64)];
+        this.numBits = (long) bits.length * 64;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expected * Math.log(2)));
+    }
+
+    // Sizes the filter for twice the current customer count so sign-up drives don't degrade it
+    public static EmailBloomFilter build(Connection connection, double falsePositiveRate) throws SQLException {
+        long customerCount = 0;
+        try (PreparedStatement countStatement = connection.prepareStatement("SELECT COUNT(*) FROM customers");
+             ResultSet resultSet = countStatement.executeQuery()) {
+            if (resultSet.next()) {
+                customerCount = resultSet.getLong(1);
+            }
+        }
+
+        EmailBloomFilter filter = new EmailBloomFilter(Math.max(10000, customerCount * 2), falsePositiveRate);
+        try (PreparedStatement emailStatement = connection.prepareStatement("SELECT email FROM customers WHERE email IS NOT NULL")) {
+            emailStatement.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet resultSet = emailStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    filter.put(resultSet.getString(1));
+                }
+            }
+        }
+        return filter;
+    }
+
+    public synchronized void put(String email) {
+        long hash1 = hash(email, 0x9E3779B97F4A7C15L);
+        long hash2 = hash(email, 0xC2B2AE3D27D4EB4FL) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numBits);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public synchronized boolean mightContain(String email) {
+        long hash1 = hash(email, 0x9E3779B97F4A7C15L);
+        long hash2 = hash(email, 0xC2B2AE3D27D4EB4FL) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numBits);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Emails are unique case-insensitively in MySQL, so they are hashed the same way
+    private static long hash(String email, long seed) {
+        byte[] bytes = email.trim().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+        long h = seed;
+        for (byte b : bytes) {
+            h ^= b & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        // Final avalanche so nearby emails land on unrelated bits
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,162 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+// In-memory inverted index over feedback comments. Comments are split into lowercase letter/digit
+// tokens, minus common stop words; each token's postings list holds the ascending comment numbers that
+// contain it, delta-encoded as variable-length bytes (7 bits per byte, high bit set on the last byte).
+// The rating of every comment is kept alongside, so a search reports how matching comments were rated.
+// Built once from the feedback table at startup, then extended from addFeedback.
+public class FeedbackIndex {
+    private static final Set<String> STOP_WORDS = new LinkedHashSet<>(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "but", "for", "i", "in", "is", "it", "of", "on", "or",
+            "so", "the", "this", "to", "very", "was", "we", "with"));
+
+    private final Map<String, Postings> terms = new HashMap<>();
+    private byte[] ratings = new byte[1024];
+    private int documents;
+
+    // One term's compressed postings
+    static class Postings {
+        byte[] bytes = new byte[8];
+        int length;
+        int lastDocument = -1;
+        int count;
+
+        void add(int document) {
+            int delta = document - lastDocument;
+            lastDocument = document;
+            count++;
+            // Up to five 7-bit groups, low group first
+            while (true) {
+                if (length == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                if (delta < 0x80) {
+                    bytes[length++] = (byte) (delta | 0x80);
+                    return;
+                }
+                bytes[length++] = (byte) (delta & 0x7F);
+                delta >>>= 7;
+            }
+        }
+
+        int[] decode() {
+            int[] documents = new int[count];
+            int position = 0;
+            int document = -1;
+            for (int i = 0; i < count; i++) {
+                int delta = 0;
+                int shift = 0;
+                while (true) {
+                    byte b = bytes[position++];
+                    delta |= (b & 0x7F) << shift;
+                    if ((b & 0x80) != 0) {
+                        break;
+                    }
+                    shift += 7;
+                }
+                document += delta;
+                documents[i] = document;
+            }
+            return documents;
+        }
+    }
+
+    public void build(Connection connection) throws SQLException {
+        String query = "SELECT rating, comments FROM feedback ORDER BY id";
+        try (PreparedStatement statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    add(resultSet.getInt("rating"), resultSet.getString("comments"));
+                }
+            }
+        }
+    }
+
+    public synchronized void add(int rating, String comments) {
+        int document = documents++;
+        if (document == ratings.length) {
+            ratings = Arrays.copyOf(ratings, ratings.length * 2);
+        }
+        ratings[document] = (byte) rating;
+        for (String token : tokenize(comments)) {
+            terms.computeIfAbsent(token, key -> new Postings()).add(document);
+        }
+    }
+
+    // Rating counts 1-5 of the comments containing every keyword
+    public synchronized int[] search(String keywords) {
+        int[] histogram = new int[5];
+        int[] matches = null;
+        for (String token : tokenize(keywords)) {
+            Postings postings = terms.get(token);
+            if (postings == null) {
+                return histogram;
+            }
+            matches = matches == null ? postings.decode() : intersect(matches, postings.decode());
+        }
+        if (matches == null) {
+            return histogram;
+        }
+        for (int document : matches) {
+            int rating = ratings[document];
+            if (rating >= 1 && rating <= 5) {
+                histogram[rating - 1]++;
+            }
+        }
+        return histogram;
+    }
+
+    public synchronized int size() {
+        return documents;
+    }
+
+    // Distinct tokens in first-seen order
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) {
+            return tokens;
+        }
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? Character.toLowerCase(text.charAt(i)) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+            } else if (token.length() > 0) {
+                String word = token.toString();
+                if (!STOP_WORDS.contains(word)) {
+                    tokens.add(word);
+                }
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    private static int[] intersect(int[] left, int[] right) {
+        int[] result = new int[Math.min(left.length, right.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < left.length && j < right.length) {
+            if (left[i] < right[j]) {
+                i++;
+            } else if (left[i] > right[j]) {
+                j++;
+            } else {
+                result[size++] = left[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+}
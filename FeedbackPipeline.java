@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Feedback is accepted into a bounded queue and written by a background thread in batched inserts on
+// its own connection; a batch that fails because the database is unreachable stays pending and is
+// retried, so an outage only fills the queue. A batch the database refuses is halved until the rows at
+// fault are found; those are logged to the rejected file and dropped, and the rest are written.
+// Rating histograms per customer and per day and the comment index are kept in memory, loaded once at
+// startup and updated as each submission is written, so the feedback report never reads the feedback
+// table and never counts feedback that was not stored.
+public class FeedbackPipeline {
+    public static final int QUEUE_CAPACITY = 10000;
+    public static final int BATCH_SIZE = 500;
+
+    private final BlockingQueue<Submission> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final RatingHistograms byCustomer = new RatingHistograms();
+    private final RatingHistograms byDay = new RatingHistograms();
+    private final FeedbackIndex index;
+    private final Path rejectedFile;
+    private Thread writer;
+    private volatile boolean running;
+
+    public FeedbackPipeline(FeedbackIndex index, Path rejectedFile) {
+        this.index = index;
+        this.rejectedFile = rejectedFile;
+    }
+
+    public static class Submission {
+        final int customerId;
+        final LocalDate date;
+        final int rating;
+        final String comments;
+
+        public Submission(int customerId, LocalDate date, int rating, String comments) {
+            this.customerId = customerId;
+            this.date = date;
+            this.rating = rating;
+            this.comments = comments;
+        }
+    }
+
+    // Counts of ratings 1-5 per int key, in one flat array indexed through an IntIntMap
+    public static class RatingHistograms {
+        private final IntIntMap slots = new IntIntMap(1024);
+        private int[] counts = new int[1024 * 5];
+        private int size;
+
+        synchronized void add(int key, int rating, int count) {
+            int slot = slots.get(key, -1);
+            if (slot < 0) {
+                slot = size++;
+                if (slot * 5 >= counts.length) {
+                    counts = Arrays.copyOf(counts, counts.length * 2);
+                }
+                slots.put(key, slot);
+            }
+            counts[slot * 5 + rating - 1] += count;
+        }
+
+        // Counts for ratings 1-5; all zero if the key has none
+        public synchronized int[] get(int key) {
+            int slot = slots.get(key, -1);
+            return slot < 0 ? new int[5] : Arrays.copyOfRange(counts, slot * 5, slot * 5 + 5);
+        }
+
+        public synchronized int[] total() {
+            int[] total = new int[5];
+            for (int i = 0; i < size * 5; i++) {
+                total[i % 5] += counts[i];
+            }
+            return total;
+        }
+    }
+
+    public void load(Connection connection) throws SQLException {
+        String query = "SELECT customer_id, feedback_date, rating, COUNT(*) AS submissions FROM feedback " +
+                "WHERE rating BETWEEN 1 AND 5 GROUP BY customer_id, feedback_date, rating";
+        try (PreparedStatement statement = connection.prepareStatement(query);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                int rating = resultSet.getInt("rating");
+                int submissions = resultSet.getInt("submissions");
+                byCustomer.add(resultSet.getInt("customer_id"), rating, submissions);
+                Date date = resultSet.getDate("feedback_date");
+                if (date != null) {
+                    byDay.add((int) date.toLocalDate().toEpochDay(), rating, submissions);
+                }
+            }
+        }
+    }
+
+    // Queues the submission; it is counted once written. False if the queue stayed full.
+    public boolean submit(Submission submission) {
+        try {
+            return queue.offer(submission, 1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public RatingHistograms getByCustomer() {
+        return byCustomer;
+    }
+
+    public RatingHistograms getByDay() {
+        return byDay;
+    }
+
+    public int pending() {
+        return queue.size();
+    }
+
+    public void start() {
+        running = true;
+        writer = new Thread(this::writeLoop, "feedback-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Lets the writer flush what is queued, waiting up to the timeout
+    public void stop(long timeoutMillis) {
+        running = false;
+        if (writer != null) {
+            try {
+                writer.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!queue.isEmpty()) {
+            System.out.println(queue.size() + " feedback submission(s) could not be saved.");
+        }
+    }
+
+    private void writeLoop() {
+        List<Submission> batch = new ArrayList<>();
+        Connection connection = null;
+        while (running || !queue.isEmpty() || !batch.isEmpty()) {
+            try {
+                if (batch.isEmpty()) {
+                    Submission first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                }
+                if (connection == null || !connection.isValid(2)) {
+                    connection = DriverManager.getConnection(RetailShopBillingSystem.URL,
+                            RetailShopBillingSystem.USER, RetailShopBillingSystem.PASSWORD);
+                }
+                Set<Submission> done = Collections.newSetFromMap(new IdentityHashMap<>());
+                try {
+                    insertOrSplit(connection, batch, done);
+                } finally {
+                    // Only what is still unwritten is retried, so nothing is inserted twice
+                    batch.removeIf(done::contains);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (SQLException e) {
+                // Keep the batch and try again shortly; give up only when stopping
+                connection = null;
+                if (!running) {
+                    System.out.println(batch.size() + " feedback submission(s) could not be saved.");
+                    return;
+                }
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Writes the batch, halving it when the database refuses it so one bad row cannot hold up the rest.
+    // Submissions written or rejected are added to done; a link failure is thrown with the rest unwritten.
+    private void insertOrSplit(Connection connection, List<Submission> batch, Set<Submission> done) throws SQLException {
+        try {
+            insertBatch(connection, batch);
+        } catch (SQLException e) {
+            if (!isRefused(connection, e)) {
+                throw e;
+            }
+            if (batch.size() == 1) {
+                reject(batch.get(0), e);
+                done.add(batch.get(0));
+                return;
+            }
+            int half = batch.size() / 2;
+            insertOrSplit(connection, batch.subList(0, half), done);
+            insertOrSplit(connection, batch.subList(half, batch.size()), done);
+            return;
+        }
+        for (Submission submission : batch) {
+            byCustomer.add(submission.customerId, submission.rating, 1);
+            byDay.add((int) submission.date.toEpochDay(), submission.rating, 1);
+            index.add(submission.rating, submission.comments);
+            done.add(submission);
+        }
+    }
+
+    // Refused for the rows themselves (a constraint or bad data), not because the database went away
+    private static boolean isRefused(Connection connection, SQLException e) {
+        SQLException cause = e instanceof BatchUpdateException && e.getCause() instanceof SQLException
+                ? (SQLException) e.getCause() : e;
+        return !(cause instanceof SQLTransientException || cause instanceof SQLRecoverableException
+                || RetailShopBillingSystem.isLinkDown(connection));
+    }
+
+    private void reject(Submission submission, SQLException e) {
+        String line = submission.customerId + "\t" + submission.date + "\t" + submission.rating + "\t"
+                + e.getErrorCode() + "\t" + String.valueOf(e.getMessage()).replace('\n', ' ') + "\t"
+                + (submission.comments == null ? "" : submission.comments.replace('\n', ' ')) + System.lineSeparator();
+        try {
+            if (rejectedFile.getParent() != null) {
+                Files.createDirectories(rejectedFile.getParent());
+            }
+            Files.write(rejectedFile, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException io) {
+            io.printStackTrace();
+        }
+        System.out.println("Feedback from customer " + submission.customerId + " was refused by the database (error "
+                + e.getErrorCode() + ") and moved to " + rejectedFile + ".");
+    }
+
+    private static void insertBatch(Connection connection, List<Submission> batch) throws SQLException {
+        String query = "INSERT INTO feedback (customer_id, feedback_date, rating, comments) VALUES (?, ?, ?, ?)";
+        connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            for (Submission submission : batch) {
+                statement.setInt(1, submission.customerId);
+                statement.setDate(2, Date.valueOf(submission.date));
+                statement.setInt(3, submission.rating);
+                statement.setString(4, submission.comments);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.Arrays;
+
+// Open-addressing int -> int hash map with linear probing. Keys and values stay in flat arrays,
+// so per-product and per-customer counters take no boxing and little memory at 50k+ entries.
+public class IntIntMap {
+    private int[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+
+    public interface Visitor {
+        void visit(int key, int value);
+    }
+
+    public IntIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean containsKey(int key) {
+        return used[slot(key)];
+    }
+
+    public synchronized int get(int key, int defaultValue) {
+        int slot = slot(key);
+        return used[slot] ? values[slot] : defaultValue;
+    }
+
+    public synchronized void put(int key, int value) {
+        int slot = slot(key);
+        if (!used[slot]) {
+            used[slot] = true;
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        if (size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    // Adds delta to the key's value, starting from zero, and returns the new value
+    public synchronized int add(int key, int delta) {
+        int slot = slot(key);
+        if (!used[slot]) {
+            put(key, delta);
+            return delta;
+        }
+        values[slot] += delta;
+        return values[slot];
+    }
+
+    // Backward-shift delete, so lookups never need tombstones
+    public synchronized void remove(int key) {
+        int slot = slot(key);
+        if (!used[slot]) {
+            return;
+        }
+        used[slot] = false;
+        size--;
+        int mask = keys.length - 1;
+        int next = (slot + 1) & mask;
+        while (used[next]) {
+            int home = mix(keys[next]) & mask;
+            // The entry can fill the hole only if the hole lies between its home slot and where it sits
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                keys[slot] = keys[next];
+                values[slot] = values[next];
+                used[slot] = true;
+                used[next] = false;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    public synchronized void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = slot(oldKeys[i]);
+                used[slot] = true;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+// Tracks stock and reorder points per product in memory and raises an alert the moment a product
+// drops to its reorder point. Stock and thresholds are loaded from products once at startup; after that
+// the monitor is fed by settled bills and restocks on this till and never polls the table.
+// Alerts are printed to the console and appended to the alert log.
+public class LowStockMonitor {
+    private final Path alertLog;
+    private final IntIntMap stock = new IntIntMap(1024);
+    private final IntIntMap reorderPoints = new IntIntMap(1024);
+
+    public LowStockMonitor(Path alertLog) {
+        this.alertLog = alertLog;
+    }
+
+    public void load(Connection connection) throws SQLException {
+        String query = "SELECT id, stock, reorder_point FROM products";
+        try (PreparedStatement statement = connection.prepareStatement(query);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                track(resultSet.getInt("id"), resultSet.getInt("stock"), resultSet.getInt("reorder_point"));
+            }
+        }
+    }
+
+    public void track(int productId, int currentStock, int reorderPoint) {
+        stock.put(productId, currentStock);
+        reorderPoints.put(productId, reorderPoint);
+    }
+
+    // BillFeed subscriber: every settled line is a stock decrement
+    public void onBill(BillEvent event) {
+        // Returned goods go back on the shelf
+        int direction = BillEvent.REFUNDED.equals(event.getType()) ? 1 : -1;
+        for (int i = 0; i < event.getLineCount(); i++) {
+            onStockChange(event.getProductId(i), direction * event.getQuantity(i));
+        }
+    }
+
+    public void onRestock(int productId, int quantity) {
+        onStockChange(productId, quantity);
+    }
+
+    public void setReorderPoint(int productId, int reorderPoint) {
+        reorderPoints.put(productId, reorderPoint);
+    }
+
+    public int getReorderPoint(int productId) {
+        return reorderPoints.get(productId, 0);
+    }
+
+    // Products at or below their reorder point as {productId, stock, reorderPoint}
+    public List<int[]> lowStock() {
+        List<int[]> low = new ArrayList<>();
+        stock.forEach((productId, currentStock) -> {
+            int reorderPoint = reorderPoints.get(productId, 0);
+            if (currentStock <= reorderPoint) {
+                low.add(new int[] {productId, currentStock, reorderPoint});
+            }
+        });
+        return low;
+    }
+
+    private void onStockChange(int productId, int delta) {
+        if (!stock.containsKey(productId)) {
+            return;
+        }
+        int after = stock.add(productId, delta);
+        int before = after - delta;
+        int reorderPoint = reorderPoints.get(productId, 0);
+        // Alert on the crossing only, not on every sale while the product stays low
+        if (before > reorderPoint && after <= reorderPoint) {
+            alert("LOW STOCK product " + productId + ": " + after + " left, reorder point " + reorderPoint);
+        }
+    }
+
+    private void alert(String message) {
+        System.out.println(message);
+        try {
+            if (alertLog.getParent() != null) {
+                Files.createDirectories(alertLog.getParent());
+            }
+            Files.write(alertLog, (LocalDateTime.now() + " " + message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,522 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the till selling when the MySQL link drops. Holds a snapshot of the product catalog
+// (in memory and in catalog.dat) so items can be billed without the database, and an append-only
+// outbox of bills settled while offline. Customers come from CustomerCache, which is already in memory.
+// A background thread replays the outbox to MySQL in order once the link is back; a sale that
+// oversold a product during the outage clamps its stock at zero and is logged to stock-conflicts.log.
+// Replication never holds the store's lock while talking to MySQL, so the till keeps selling from
+// memory during a partition. Every failed run is logged to replication.log; a bill MySQL refuses for
+// good (a constraint or CHECK failure) is moved to dead-letter.dat so the bills behind it still go.
+public class OfflineStore {
+    private final Path catalogFile;
+    private final Path outboxFile;
+    private final Path conflictLog;
+    private final Path replicationLog;
+    private final Path deadLetterFile;
+    private final long replicateEveryMillis;
+    // Held for a whole replication run, so runs never overlap; the till's own calls do not take it
+    private final Object replicating = new Object();
+    private String lastFailure;
+
+    // Catalog snapshot, keyed by lowercased name like the products lookups; stock is adjusted by every sale
+    private final Map<String, Product> productsByName = new HashMap<>();
+    private final Map<Integer, Integer> stockById = new HashMap<>();
+    // Bills settled offline, oldest first, not yet in MySQL
+    private final ArrayDeque<QueuedBill> outbox = new ArrayDeque<>();
+    private volatile boolean offline;
+    private ScheduledExecutorService replicator;
+
+    public OfflineStore(Path directory, long replicateEveryMillis) {
+        this.catalogFile = directory.resolve("catalog.dat");
+        this.outboxFile = directory.resolve("outbox.dat");
+        this.conflictLog = directory.resolve("stock-conflicts.log");
+        this.replicationLog = directory.resolve("replication.log");
+        this.deadLetterFile = directory.resolve("dead-letter.dat");
+        this.replicateEveryMillis = replicateEveryMillis;
+    }
+
+    // A bill settled while offline, as it will be written to bills, bill_items and bill_payments
+    static class QueuedBill {
+        final int billId;
+        final int customerId;
+        final int counterId;
+        final long billDate;
+        final String paymentMethod;
+        final int totalQuantity;
+        final double total;
+        final int[] productIds;
+        final int[] quantities;
+        final double[] rates;
+        final List<Tender> tenders;
+
+        QueuedBill(int billId, int customerId, int counterId, long billDate, String paymentMethod,
+                   int totalQuantity, double total, int[] productIds, int[] quantities, double[] rates, List<Tender> tenders) {
+            this.billId = billId;
+            this.customerId = customerId;
+            this.counterId = counterId;
+            this.billDate = billDate;
+            this.paymentMethod = paymentMethod;
+            this.totalQuantity = totalQuantity;
+            this.total = total;
+            this.productIds = productIds;
+            this.quantities = quantities;
+            this.rates = rates;
+            this.tenders = tenders;
+        }
+    }
+
+    // Loads the last catalog snapshot and any bills still waiting from a previous run
+    public synchronized void open() throws IOException {
+        Files.createDirectories(outboxFile.getParent());
+        if (Files.exists(catalogFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(catalogFile)))) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    putProduct(new Product(in.readInt(), in.readUTF(), in.readDouble(), in.readDouble(), in.readInt()));
+                }
+            }
+        }
+        if (Files.exists(outboxFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(outboxFile)))) {
+                while (true) {
+                    QueuedBill bill = readBill(in);
+                    if (bill == null) {
+                        break;
+                    }
+                    outbox.add(bill);
+                }
+            }
+        }
+        if (!outbox.isEmpty()) {
+            // Later bills wait behind these so stock is applied in the order it was sold
+            offline = true;
+            System.out.println(outbox.size() + " offline bill(s) are waiting to be sent to the database.");
+        }
+    }
+
+    // Replaces the catalog snapshot with the database's, less anything still waiting in the outbox
+    public void snapshotCatalog(Connection connection) throws SQLException, IOException {
+        // Read outside the lock; only swapping the snapshot in holds up the till
+        List<Product> products = new ArrayList<>();
+        String query = "SELECT id, name, price, rate, stock FROM products";
+        try (PreparedStatement statement = connection.prepareStatement(query);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                products.add(new Product(resultSet.getInt("id"), resultSet.getString("name"),
+                        resultSet.getDouble("price"), resultSet.getDouble("rate"), resultSet.getInt("stock")));
+            }
+        }
+        synchronized (this) {
+            applySnapshot(products);
+        }
+    }
+
+    private void applySnapshot(List<Product> products) throws IOException {
+        productsByName.clear();
+        stockById.clear();
+        for (Product product : products) {
+            putProduct(product);
+        }
+        for (QueuedBill bill : outbox) {
+            for (int i = 0; i < bill.productIds.length; i++) {
+                int sold = bill.quantities[i];
+                stockById.computeIfPresent(bill.productIds[i], (id, stock) -> stock - sold);
+            }
+        }
+        writeCatalog();
+    }
+
+    // The product as of the snapshot, with its stock reduced by sales since; null if it is not in the catalog
+    public synchronized Product findProduct(String name) {
+        Product product = productsByName.get(name.toLowerCase());
+        if (product == null) {
+            return null;
+        }
+        int productId = Integer.parseInt(product.getProductId());
+        return new Product(productId, product.getName(), product.getPrice(), product.getRate(),
+                stockById.getOrDefault(productId, 0));
+    }
+
+    // Keeps the snapshot's stock in step with sales made on this till, online or offline
+    public synchronized void recordSale(BillCart cart) {
+        for (BillCart.Line line : cart.getLines()) {
+            stockById.computeIfPresent(line.getProductId(), (id, stock) -> stock - line.getQuantity());
+        }
+    }
+
+    // Goods returned against a settled bill are back on sale
+    public synchronized void recordReturn(int[] productIds, int[] quantities) {
+        for (int i = 0; i < productIds.length; i++) {
+            int returned = quantities[i];
+            stockById.computeIfPresent(productIds[i], (id, stock) -> stock + returned);
+        }
+    }
+
+    // Saves a bill settled without the database; it is on disk before this returns
+    public synchronized void queueBill(BillCart cart, List<Tender> tenders) throws IOException {
+        List<BillCart.Line> lines = new ArrayList<>(cart.getLines());
+        int[] productIds = new int[lines.size()];
+        int[] quantities = new int[lines.size()];
+        double[] rates = new double[lines.size()];
+        for (int i = 0; i < lines.size(); i++) {
+            productIds[i] = lines.get(i).getProductId();
+            quantities[i] = lines.get(i).getQuantity();
+            rates[i] = lines.get(i).getRate();
+        }
+        QueuedBill bill = new QueuedBill(cart.getBillId(), cart.getCustomerId(), RetailShopBillingSystem.COUNTER_ID,
+                System.currentTimeMillis(), Tender.methodOf(tenders), cart.getTotalQuantity(), cart.getTotal(),
+                productIds, quantities, rates, new ArrayList<>(tenders));
+        try (FileOutputStream out = new FileOutputStream(outboxFile.toFile(), true)) {
+            out.write(encode(bill));
+            out.getFD().sync();
+        }
+        outbox.add(bill);
+        recordSale(cart);
+        offline = true;
+    }
+
+    public synchronized boolean isQueued(int billId) {
+        for (QueuedBill bill : outbox) {
+            if (bill.billId == billId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int pendingCount() {
+        return outbox.size();
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    public void markOffline() {
+        offline = true;
+    }
+
+    public void start() {
+        replicator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "offline-replicator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replicator.scheduleWithFixedDelay(this::replicate, replicateEveryMillis, replicateEveryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (replicator != null) {
+            replicator.shutdown();
+        }
+        // One last attempt so a clean exit does not leave bills behind when the link is up
+        replicate();
+    }
+
+    // Sends queued bills to MySQL oldest first on a connection of its own. A link or transient failure
+    // stops the run and leaves the rest queued; a bill refused for any other reason is dead-lettered.
+    public void replicate() {
+        synchronized (replicating) {
+            synchronized (this) {
+                if (outbox.isEmpty()) {
+                    return;
+                }
+            }
+            int replicated = 0;
+            int deadLettered = 0;
+            try (Connection connection = DriverManager.getConnection(RetailShopBillingSystem.URL,
+                    RetailShopBillingSystem.USER, RetailShopBillingSystem.PASSWORD)) {
+                while (true) {
+                    QueuedBill bill;
+                    synchronized (this) {
+                        bill = outbox.peek();
+                    }
+                    if (bill == null) {
+                        break;
+                    }
+                    try {
+                        replicateBill(connection, bill);
+                        replicated++;
+                    } catch (SQLException e) {
+                        if (isRetryable(connection, e)) {
+                            throw e;
+                        }
+                        deadLetter(bill, e);
+                        deadLettered++;
+                    }
+                    synchronized (this) {
+                        outbox.poll();
+                    }
+                }
+                snapshotCatalog(connection);
+                synchronized (this) {
+                    // Bills queued during the run were picked up by the loop, but check under the lock
+                    offline = !outbox.isEmpty();
+                }
+                lastFailure = null;
+            } catch (SQLException | IOException e) {
+                logFailure(e);
+            }
+            if (replicated > 0 || deadLettered > 0) {
+                synchronized (this) {
+                    try {
+                        rewriteOutbox();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    System.out.println("Sent " + replicated + " offline bill(s) to the database, " + outbox.size() + " still waiting.");
+                }
+            }
+        }
+    }
+
+    // The link, a lock wait or a deadlock; anything else will fail the same way next time
+    private static boolean isRetryable(Connection connection, SQLException e) {
+        return e instanceof SQLTransientException || e instanceof SQLRecoverableException
+                || RetailShopBillingSystem.isLinkDown(connection);
+    }
+
+    // Keeps the refused bill, in the outbox's own format, for someone to fix and resend
+    private void deadLetter(QueuedBill bill, SQLException e) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(deadLetterFile.toFile(), true)) {
+            out.write(encode(bill));
+            out.getFD().sync();
+        }
+        String message = "Offline bill " + bill.billId + " was refused by the database (error " + e.getErrorCode() + ": "
+                + e.getMessage() + ") and moved to " + deadLetterFile + ".";
+        System.out.println(message);
+        appendLog(message);
+    }
+
+    // Every failure goes to replication.log; the console only hears about it when the reason changes
+    private void logFailure(Exception e) {
+        String message = "Offline bills not sent: " + e.getMessage();
+        appendLog(message);
+        if (!message.equals(lastFailure)) {
+            System.out.println(message + " Retrying every " + replicateEveryMillis / 1000 + " s.");
+            lastFailure = message;
+        }
+    }
+
+    private void appendLog(String message) {
+        try {
+            Files.write(replicationLog, (LocalDateTime.now() + " " + message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void replicateBill(Connection connection, QueuedBill bill) throws SQLException {
+        String insertBillQuery = "INSERT INTO bills (id, customer_id, counter_id, tot_quantity, bill_date, total, payment_method) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        String insertItemQuery = "INSERT INTO bill_items (bill_id, product_id, quantity, price) VALUES (?, ?, ?, ?)";
+        String lockStockQuery = "SELECT stock FROM products WHERE id = ? FOR UPDATE";
+        String updateStockQuery = "UPDATE products SET stock = GREATEST(stock - ?, 0) WHERE id = ?";
+        List<String> conflicts = new ArrayList<>();
+        connection.setAutoCommit(false);
+        try {
+            try (PreparedStatement insertBillStatement = connection.prepareStatement(insertBillQuery)) {
+                insertBillStatement.setInt(1, bill.billId);
+                insertBillStatement.setInt(2, bill.customerId);
+                insertBillStatement.setInt(3, bill.counterId);
+                insertBillStatement.setInt(4, bill.totalQuantity);
+                insertBillStatement.setTimestamp(5, new Timestamp(bill.billDate));
+                insertBillStatement.setDouble(6, bill.total);
+                insertBillStatement.setString(7, bill.paymentMethod);
+                insertBillStatement.executeUpdate();
+            } catch (SQLIntegrityConstraintViolationException e) {
+                // A duplicate id is only "already sent" if the bill really is there; a missing customer
+                // or any other constraint failure is a real problem and the bill must not be dropped
+                connection.rollback();
+                if (e.getErrorCode() == 1062 && billExists(connection, bill.billId)) {
+                    return;
+                }
+                throw e;
+            }
+            try (PreparedStatement insertItemStatement = connection.prepareStatement(insertItemQuery)) {
+                for (int i = 0; i < bill.productIds.length; i++) {
+                    insertItemStatement.setInt(1, bill.billId);
+                    insertItemStatement.setInt(2, bill.productIds[i]);
+                    insertItemStatement.setInt(3, bill.quantities[i]);
+                    insertItemStatement.setDouble(4, bill.rates[i]);
+                    insertItemStatement.addBatch();
+                }
+                insertItemStatement.executeBatch();
+            }
+            RetailShopBillingSystem.insertBillPayments(connection, bill.billId, bill.tenders);
+            // The goods have already left the shop, so a shortfall is clamped at zero and logged rather than refused
+            try (PreparedStatement lockStockStatement = connection.prepareStatement(lockStockQuery);
+                 PreparedStatement updateStockStatement = connection.prepareStatement(updateStockQuery)) {
+                for (int i = 0; i < bill.productIds.length; i++) {
+                    lockStockStatement.setInt(1, bill.productIds[i]);
+                    try (ResultSet resultSet = lockStockStatement.executeQuery()) {
+                        int stock = resultSet.next() ? resultSet.getInt("stock") : 0;
+                        if (stock < bill.quantities[i]) {
+                            conflicts.add(LocalDateTime.now() + " bill " + bill.billId + " product " + bill.productIds[i]
+                                    + " sold " + bill.quantities[i] + " with " + stock + " in stock");
+                        }
+                    }
+                    updateStockStatement.setInt(1, bill.quantities[i]);
+                    updateStockStatement.setInt(2, bill.productIds[i]);
+                    updateStockStatement.addBatch();
+                }
+                updateStockStatement.executeBatch();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        if (!conflicts.isEmpty()) {
+            // The bill is committed; failing to log the conflict must not send it again
+            System.out.println("Stock conflict while sending offline bill " + bill.billId + "; see " + conflictLog + ".");
+            try {
+                Files.write(conflictLog, (String.join(System.lineSeparator(), conflicts) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static boolean billExists(Connection connection, int billId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT id FROM bills WHERE id = ?")) {
+            statement.setInt(1, billId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    private void putProduct(Product product) {
+        productsByName.put(product.getName().toLowerCase(), product);
+        stockById.put(Integer.parseInt(product.getProductId()), product.getStock());
+    }
+
+    private void writeCatalog() throws IOException {
+        Path tmp = catalogFile.resolveSibling(catalogFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(productsByName.size());
+            for (Product product : productsByName.values()) {
+                int productId = Integer.parseInt(product.getProductId());
+                out.writeInt(productId);
+                out.writeUTF(product.getName());
+                out.writeDouble(product.getPrice());
+                out.writeDouble(product.getRate());
+                out.writeInt(stockById.getOrDefault(productId, 0));
+            }
+        }
+        Files.move(tmp, catalogFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void rewriteOutbox() throws IOException {
+        if (outbox.isEmpty()) {
+            Files.deleteIfExists(outboxFile);
+            return;
+        }
+        Path tmp = outboxFile.resolveSibling(outboxFile.getFileName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            for (QueuedBill bill : outbox) {
+                out.write(encode(bill));
+            }
+            out.getFD().sync();
+        }
+        Files.move(tmp, outboxFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] encode(QueuedBill bill) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(bill.billId);
+        out.writeInt(bill.customerId);
+        out.writeInt(bill.counterId);
+        out.writeLong(bill.billDate);
+        out.writeUTF(bill.paymentMethod);
+        out.writeInt(bill.totalQuantity);
+        out.writeDouble(bill.total);
+        out.writeInt(bill.productIds.length);
+        for (int i = 0; i < bill.productIds.length; i++) {
+            out.writeInt(bill.productIds[i]);
+            out.writeInt(bill.quantities[i]);
+            out.writeDouble(bill.rates[i]);
+        }
+        // Always written, so a single card or UPI tender keeps its authorization code or reference
+        out.writeInt(bill.tenders.size());
+        for (Tender tender : bill.tenders) {
+            out.writeUTF(tender.getMethod());
+            out.writeDouble(tender.getAmount());
+            out.writeUTF(tender.getReference() != null ? tender.getReference() : "");
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Returns null at the end of the file or at a record cut short by a crash
+    private static QueuedBill readBill(DataInputStream in) throws IOException {
+        try {
+            int billId = in.readInt();
+            int customerId = in.readInt();
+            int counterId = in.readInt();
+            long billDate = in.readLong();
+            String paymentMethod = in.readUTF();
+            int totalQuantity = in.readInt();
+            double total = in.readDouble();
+            int lineCount = in.readInt();
+            if (lineCount < 0 || lineCount > in.available() / 16) {
+                return null;
+            }
+            int[] productIds = new int[lineCount];
+            int[] quantities = new int[lineCount];
+            double[] rates = new double[lineCount];
+            for (int i = 0; i < lineCount; i++) {
+                productIds[i] = in.readInt();
+                quantities[i] = in.readInt();
+                rates[i] = in.readDouble();
+            }
+            List<Tender> tenders = new ArrayList<>();
+            int tenderCount = in.readInt();
+            for (int i = 0; i < tenderCount; i++) {
+                String method = in.readUTF();
+                double amount = in.readDouble();
+                String reference = in.readUTF();
+                tenders.add(new Tender(method, amount, reference.isEmpty() ? null : reference));
+            }
+            return new QueuedBill(billId, customerId, counterId, billDate, paymentMethod, totalQuantity, total, productIds, quantities, rates, tenders);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Puts a timeout and retries around a PaymentProcessor. Each attempt gets timeoutMillis; an attempt
+// that times out or fails transiently is retried with doubling backoff. When the retries run out the
+// processor may still have approved it, so the payment comes back unknown and is reversed straight
+// away; callers only ever see a result. Retries carry the same idempotency key, which the processor
+// uses to avoid approving a payment twice. Reversals are retried the same way.
+//
+// submit() runs an authorization in the background and parks the result on a queue that the till's
+// main loop drains to settle the bill, so the cashier can start the next customer meanwhile. The bill
+// stays held from submit() until the main loop has settled it and calls release().
+//
+// Load test against the simulator:
+//   java PaymentGateway [requests] [concurrency] [mean latency ms] [failure rate] [timeout ms]
+public class PaymentGateway {
+    private final PaymentProcessor processor;
+    private final long timeoutMillis;
+    private final int retries;
+    private final Set<Integer> pendingBills = ConcurrentHashMap.newKeySet();
+    private final Queue<AuthorizationResult> completed = new ConcurrentLinkedQueue<>();
+
+    public PaymentGateway(PaymentProcessor processor, long timeoutMillis, int retries) {
+        this.processor = processor;
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+    }
+
+    public PaymentProcessor getProcessor() {
+        return processor;
+    }
+
+    // Never completes exceptionally
+    public CompletableFuture<AuthorizationResult> authorize(PaymentRequest request) {
+        long started = System.nanoTime();
+        return attempt(request, 1).thenApply(result -> {
+            result.setLatencyMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            if (result.isUnknown()) {
+                reverse(request);
+            }
+            return result;
+        });
+    }
+
+    // Voids a payment with the processor, retrying every failure. Completes with false, after telling
+    // the cashier to follow it up with the acquirer, only when the retries run out.
+    public CompletableFuture<Boolean> reverse(PaymentRequest request) {
+        return reverseAttempt(request, 1);
+    }
+
+    private CompletableFuture<Boolean> reverseAttempt(PaymentRequest request, int attempt) {
+        CompletableFuture<Void> future;
+        try {
+            future = processor.reverse(request).orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        return future.handle((done, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(true);
+            }
+            if (attempt <= retries) {
+                long backoff = 100L << (attempt - 1);
+                return CompletableFuture.supplyAsync(() -> request, CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS))
+                        .thenCompose(same -> reverseAttempt(same, attempt + 1));
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            System.out.printf("Could not reverse %s payment of %.2f for bill %d (%s): %s. Reverse it with the acquirer.%n",
+                    request.getTender(), request.getAmount(), request.getBillId(), request.getIdempotencyKey(),
+                    cause instanceof TimeoutException ? "no answer from " + processor.getName() : cause.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }).thenCompose(next -> next);
+    }
+
+    private CompletableFuture<AuthorizationResult> attempt(PaymentRequest request, int attempt) {
+        CompletableFuture<AuthorizationResult> future;
+        try {
+            future = processor.authorize(request).orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        return future.handle((result, error) -> {
+            if (error == null) {
+                result.setAttempts(attempt);
+                return CompletableFuture.completedFuture(result);
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            boolean retryable = cause instanceof TransientPaymentException || cause instanceof TimeoutException;
+            if (retryable && attempt <= retries) {
+                long backoff = 100L << (attempt - 1);
+                return CompletableFuture.supplyAsync(() -> request, CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS))
+                        .thenCompose(same -> attempt(same, attempt + 1));
+            }
+            AuthorizationResult failed = retryable
+                    ? AuthorizationResult.unknown(request, "No answer from " + processor.getName() + " after " + attempt
+                            + " attempt(s); the payment is being reversed")
+                    : AuthorizationResult.declined(request, "Payment processor error: " + cause.getMessage());
+            failed.setAttempts(attempt);
+            return CompletableFuture.completedFuture(failed);
+        }).thenCompose(next -> next);
+    }
+
+    // Starts authorizing in the background; false if the bill is already held for a payment
+    public boolean submit(PaymentRequest request) {
+        if (!hold(request.getBillId())) {
+            return false;
+        }
+        authorize(request).thenAccept(completed::add);
+        return true;
+    }
+
+    // Marks the bill as taking a payment so it cannot be edited, reaped or paid again; false if it already is
+    public boolean hold(int billId) {
+        return pendingBills.add(billId);
+    }
+
+    // Called once a held bill has been settled, or its payment has failed
+    public void release(int billId) {
+        pendingBills.remove(billId);
+    }
+
+    public boolean isPending(int billId) {
+        return pendingBills.contains(billId);
+    }
+
+    public int pendingCount() {
+        return pendingBills.size();
+    }
+
+    // Next finished authorization, or null
+    public AuthorizationResult pollCompleted() {
+        return completed.poll();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        long meanLatency = args.length > 2 ? Long.parseLong(args[2]) : 200;
+        double failureRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.05;
+        long timeout = args.length > 4 ? Long.parseLong(args[4]) : 1000;
+
+        PaymentGateway gateway = new PaymentGateway(new SimulatedPaymentProcessor(meanLatency, failureRate, 0.02), timeout, 2);
+        long[] latencies = new long[requests];
+        AtomicInteger approved = new AtomicInteger();
+        AtomicInteger unknown = new AtomicInteger();
+        AtomicInteger retried = new AtomicInteger();
+        List<String> sampleDeclines = new ArrayList<>();
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(requests);
+        long started = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            int index = i;
+            inFlight.acquire();
+            PaymentRequest request = PaymentRequest.card(i + 1, 1, 100 + i % 900, "4111111111111111", "12/99", "123");
+            gateway.authorize(request).thenAccept(result -> {
+                latencies[index] = result.getLatencyMillis();
+                if (result.isApproved()) {
+                    approved.incrementAndGet();
+                } else {
+                    if (result.isUnknown()) {
+                        unknown.incrementAndGet();
+                    }
+                    synchronized (sampleDeclines) {
+                        if (sampleDeclines.size() < 3) {
+                            sampleDeclines.add(result.getMessage());
+                        }
+                    }
+                }
+                if (result.getAttempts() > 1) {
+                    retried.incrementAndGet();
+                }
+                inFlight.release();
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+
+        Arrays.sort(latencies);
+        System.out.printf("%d authorizations, %d in flight, simulator mean %d ms, failure rate %.2f, timeout %d ms%n",
+                requests, concurrency, meanLatency, failureRate, timeout);
+        System.out.printf("Throughput: %.1f/s over %d ms%n", requests * 1000.0 / elapsedMillis, elapsedMillis);
+        System.out.printf("Latency ms: p50 %d  p95 %d  p99 %d  max %d%n", percentile(latencies, 0.50),
+                percentile(latencies, 0.95), percentile(latencies, 0.99), latencies[requests - 1]);
+        System.out.printf("Approved %d, declined %d, unknown and reversed %d, retried %d%n", approved.get(),
+                requests - approved.get() - unknown.get(), unknown.get(), retried.get());
+        for (String decline : sampleDeclines) {
+            System.out.println("  e.g. " + decline);
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+}
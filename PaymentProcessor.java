@@ -0,0 +1,15 @@
+import java.util.concurrent.CompletableFuture;
+
+// A backend that authorizes card and UPI payments. Neither call blocks the caller: the future
+// completes with the processor's answer, or exceptionally with TransientPaymentException when the
+// request may be retried.
+public interface PaymentProcessor {
+    String getName();
+
+    CompletableFuture<AuthorizationResult> authorize(PaymentRequest request);
+
+    // Voids whatever was approved under the request's idempotency key, and stops a late authorization
+    // of it from being approved. Completes normally when nothing was approved, so it is safe to call
+    // for a payment whose outcome is unknown.
+    CompletableFuture<Void> reverse(PaymentRequest request);
+}
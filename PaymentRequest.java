@@ -0,0 +1,73 @@
+import java.util.UUID;
+
+// One authorization request: the bill, the tender and the customer's credentials for it.
+// For cards the account is the card number; for UPI it is the UPI id and reference is the transaction reference.
+public class PaymentRequest {
+    private final int billId;
+    private final int customerId;
+    private final String tender;
+    private final double amount;
+    private final String account;
+    private final String expiry;
+    private final String cvv;
+    private final String reference;
+    private final String idempotencyKey;
+
+    public PaymentRequest(int billId, int customerId, String tender, double amount, String account, String expiry, String cvv, String reference) {
+        this.billId = billId;
+        this.customerId = customerId;
+        this.tender = tender;
+        this.amount = amount;
+        this.account = account;
+        this.expiry = expiry;
+        this.cvv = cvv;
+        this.reference = reference;
+        this.idempotencyKey = billId + "/" + tender + "/" + UUID.randomUUID();
+    }
+
+    public static PaymentRequest card(int billId, int customerId, double amount, String cardNumber, String expiry, String cvv) {
+        return new PaymentRequest(billId, customerId, "credit_card", amount, cardNumber, expiry, cvv, null);
+    }
+
+    public static PaymentRequest upi(int billId, int customerId, double amount, String upiId, String reference) {
+        return new PaymentRequest(billId, customerId, "upi", amount, upiId, null, null, reference);
+    }
+
+    public int getBillId() {
+        return billId;
+    }
+
+    public int getCustomerId() {
+        return customerId;
+    }
+
+    public String getTender() {
+        return tender;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    public String getExpiry() {
+        return expiry;
+    }
+
+    public String getCvv() {
+        return cvv;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    // Fixed when the request is built, so the gateway's retries share it, while every other request gets
+    // its own, including a second card or UPI part of a split for the same amount
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+}
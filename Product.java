@@ -8,6 +8,8 @@ public class Product {
     private String productId;
     private String name;
     private double price;
+    private double rate;
+    private int stock;
 
     public Product(String productId, String name, double price) {
         this.productId = productId;
@@ -15,6 +17,14 @@ public class Product {
         this.price = price;
     }
 
+    public Product(int productId, String name, double price, double rate, int stock) {
+        this.productId = String.valueOf(productId);
+        this.name = name;
+        this.price = price;
+        this.rate = rate;
+        this.stock = stock;
+    }
+
     public String getProductId() {
         return productId;
     }
@@ -27,6 +37,14 @@ public class Product {
         return price;
     }
 
+    public double getRate() {
+        return rate;
+    }
+
+    public int getStock() {
+        return stock;
+    }
+
     public static Product getProductDetails(DatabaseManager dbManager, String productId) {
         try {
             String query = "SELECT * FROM products WHERE product_id = '" + productId + "'";
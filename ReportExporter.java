@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+
+// Streams a report query straight to a file as CSV or as a compact binary columnar format. Rows come
+// from a MySQL streaming result set and go out through a 1 MB buffer on a FileChannel, so memory stays
+// constant whatever the row count.
+//
+// Columnar layout (all big-endian), version 2:
+//   "RSCF", int version, int columns, per column: short name length, UTF-8 name, byte type,
+//     and for DECIMAL a byte scale
+//   row groups of up to ROW_GROUP_SIZE rows: int rows, then per column: int byte length, a null
+//     bitmap of (rows + 7) / 8 bytes (bit i of byte i / 8, low bit first, set for a null), values
+//   int 0 to end, then long total rows
+// Values: INT int, LONG long, DOUBLE double, DECIMAL long unscaled value at the column's scale,
+// TIMESTAMP long epoch millis, STRING int byte length then UTF-8 bytes. A null still takes its slot,
+// as 0 or an empty string, so fixed-width values stay at row * width. DECIMAL columns too wide for a
+// long are written as STRING so no digits are lost.
+public class ReportExporter {
+    public static final String CSV = "csv";
+    public static final String COLUMNAR = "rscf";
+    public static final int ROW_GROUP_SIZE = 65536;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final byte INT = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte TIMESTAMP = 3;
+    private static final byte STRING = 4;
+    private static final byte LONG = 5;
+    private static final byte DECIMAL = 6;
+    private static final int MAX_LONG_DIGITS = 18;
+
+    // Runs the query and writes every row to the file; returns the number of rows written
+    public static long export(Connection connection, String query, Path file, String format) throws SQLException, IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (PreparedStatement statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            // Tells Connector/J to stream rows instead of loading the whole result
+            statement.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet resultSet = statement.executeQuery();
+                 FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                return COLUMNAR.equals(format) ? writeColumnar(resultSet, channel) : writeCsv(resultSet, channel);
+            }
+        }
+    }
+
+    private static long writeCsv(ResultSet resultSet, FileChannel channel) throws SQLException, IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int columns = metaData.getColumnCount();
+        StringBuilder line = new StringBuilder();
+        for (int i = 1; i <= columns; i++) {
+            appendCsvField(line, metaData.getColumnLabel(i), i == 1);
+        }
+        long rows = 0;
+        while (true) {
+            line.append('\n');
+            put(channel, buffer, line.toString().getBytes(StandardCharsets.UTF_8));
+            line.setLength(0);
+            if (!resultSet.next()) {
+                break;
+            }
+            for (int i = 1; i <= columns; i++) {
+                appendCsvField(line, resultSet.getString(i), i == 1);
+            }
+            rows++;
+        }
+        flush(channel, buffer);
+        return rows;
+    }
+
+    private static void appendCsvField(StringBuilder line, String value, boolean first) {
+        if (!first) {
+            line.append(',');
+        }
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    private static long writeColumnar(ResultSet resultSet, FileChannel channel) throws SQLException, IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int columns = metaData.getColumnCount();
+        byte[] types = new byte[columns];
+        int[] scales = new int[columns];
+        put(channel, buffer, "RSCF".getBytes(StandardCharsets.US_ASCII));
+        putInt(channel, buffer, 2);
+        putInt(channel, buffer, columns);
+        for (int i = 0; i < columns; i++) {
+            types[i] = typeOf(metaData.getColumnType(i + 1));
+            if (types[i] == INT && !metaData.isSigned(i + 1)) {
+                // INT UNSIGNED runs past Integer.MAX_VALUE
+                types[i] = LONG;
+            }
+            if (types[i] == DECIMAL) {
+                scales[i] = metaData.getScale(i + 1);
+                if (metaData.getPrecision(i + 1) > MAX_LONG_DIGITS || scales[i] < 0 || scales[i] > MAX_LONG_DIGITS) {
+                    types[i] = STRING;
+                }
+            }
+            byte[] name = metaData.getColumnLabel(i + 1).getBytes(StandardCharsets.UTF_8);
+            ensure(channel, buffer, 2 + name.length + 2);
+            buffer.putShort((short) name.length).put(name).put(types[i]);
+            if (types[i] == DECIMAL) {
+                buffer.put((byte) scales[i]);
+            }
+        }
+
+        // One growable buffer and one null bitmap per column hold the current row group; both are
+        // reused for the next group
+        ByteBuffer[] groups = new ByteBuffer[columns];
+        byte[][] nulls = new byte[columns][(ROW_GROUP_SIZE + 7) / 8];
+        for (int i = 0; i < columns; i++) {
+            groups[i] = ByteBuffer.allocate(ROW_GROUP_SIZE * 8);
+        }
+        long rows = 0;
+        int groupRows = 0;
+        while (resultSet.next()) {
+            for (int i = 0; i < columns; i++) {
+                groups[i] = appendValue(groups[i], nulls[i], groupRows, resultSet, i + 1, types[i], scales[i]);
+            }
+            rows++;
+            if (++groupRows == ROW_GROUP_SIZE) {
+                writeGroup(channel, buffer, groups, nulls, groupRows);
+                groupRows = 0;
+            }
+        }
+        if (groupRows > 0) {
+            writeGroup(channel, buffer, groups, nulls, groupRows);
+        }
+        putInt(channel, buffer, 0);
+        ensure(channel, buffer, 8);
+        buffer.putLong(rows);
+        flush(channel, buffer);
+        return rows;
+    }
+
+    private static ByteBuffer appendValue(ByteBuffer group, byte[] nulls, int row, ResultSet resultSet, int column,
+                                          byte type, int scale) throws SQLException {
+        switch (type) {
+            case INT:
+                group = grow(group, 4);
+                group.putInt(resultSet.getInt(column));
+                break;
+            case LONG:
+                group = grow(group, 8);
+                group.putLong(resultSet.getLong(column));
+                break;
+            case DOUBLE:
+                group = grow(group, 8);
+                group.putDouble(resultSet.getDouble(column));
+                break;
+            case DECIMAL:
+                BigDecimal decimal = resultSet.getBigDecimal(column);
+                group = grow(group, 8);
+                // The column's scale is exact for every value, so this never rounds
+                group.putLong(decimal == null ? 0 : decimal.setScale(scale).unscaledValue().longValueExact());
+                break;
+            case TIMESTAMP:
+                Timestamp timestamp = resultSet.getTimestamp(column);
+                group = grow(group, 8);
+                group.putLong(timestamp == null ? 0 : timestamp.getTime());
+                break;
+            default:
+                String value = resultSet.getString(column);
+                byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+                group = grow(group, 4 + bytes.length);
+                group.putInt(bytes.length);
+                group.put(bytes);
+                break;
+        }
+        if (resultSet.wasNull()) {
+            nulls[row >>> 3] |= (byte) (1 << (row & 7));
+        }
+        return group;
+    }
+
+    private static void writeGroup(FileChannel channel, ByteBuffer buffer, ByteBuffer[] groups, byte[][] nulls, int groupRows)
+            throws IOException {
+        putInt(channel, buffer, groupRows);
+        int bitmapLength = (groupRows + 7) / 8;
+        for (int i = 0; i < groups.length; i++) {
+            ByteBuffer group = groups[i];
+            group.flip();
+            putInt(channel, buffer, bitmapLength + group.remaining());
+            put(channel, buffer, Arrays.copyOf(nulls[i], bitmapLength));
+            Arrays.fill(nulls[i], 0, bitmapLength, (byte) 0);
+            while (group.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    flush(channel, buffer);
+                }
+                int length = Math.min(group.remaining(), buffer.remaining());
+                ByteBuffer slice = group.slice();
+                slice.limit(length);
+                buffer.put(slice);
+                group.position(group.position() + length);
+            }
+            group.clear();
+        }
+    }
+
+    private static byte typeOf(int sqlType) {
+        switch (sqlType) {
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return INT;
+            case Types.BIGINT:
+                return LONG;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return DECIMAL;
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return DOUBLE;
+            case Types.TIMESTAMP:
+            case Types.DATE:
+                return TIMESTAMP;
+            default:
+                return STRING;
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer group, int needed) {
+        if (group.remaining() >= needed) {
+            return group;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(group.capacity() * 2, group.position() + needed));
+        group.flip();
+        larger.put(group);
+        return larger;
+    }
+
+    private static void putInt(FileChannel channel, ByteBuffer buffer, int value) throws IOException {
+        ensure(channel, buffer, 4);
+        buffer.putInt(value);
+    }
+
+    private static void put(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush(channel, buffer);
+            }
+            int length = Math.min(bytes.length - offset, buffer.remaining());
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private static void ensure(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() < needed) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
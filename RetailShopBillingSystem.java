@@ -1,22 +1,93 @@
 
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.sql.*;
 import java.sql.Date;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 public class RetailShopBillingSystem{
     // JDBC URL, user name, and password of MySQL server
     public static final String URL = "jdbc:mysql://localhost:3306/retail_shop";
     public static final String USER = "root";
     public static final String PASSWORD = "root";
-    
+    // Known customer emails, built at startup; null until then, in which case every check goes to the database
+    public static EmailBloomFilter knownEmails;
+    // Which till this process runs as; each counter reserves its own bill id blocks
+    public static final int COUNTER_ID = Integer.getInteger("counter.id", 1);
+    public static final BillIdAllocator billIdAllocator = new BillIdAllocator(COUNTER_ID);
+    // Carts left unpaid longer than this are reaped, checked every minute
+    public static final long ABANDONED_BILL_TTL_MILLIS = Long.getLong("bill.ttl.minutes", 30) * 60_000L;
+    public static final BillReaper billReaper = new BillReaper(ABANDONED_BILL_TTL_MILLIS, 60_000L);
+    public static final CartJournal cartJournal = new CartJournal(Paths.get(System.getProperty("journal.dir", "journal"), "cart-" + COUNTER_ID + ".wal"));
+    // Catalog snapshot and bills settled while MySQL is unreachable, sent on every 15 seconds
+    public static final OfflineStore offlineStore = new OfflineStore(Paths.get(System.getProperty("offline.dir", "offline")), 15_000L);
+    // Settled bills for downstream consumers; the file log can be turned off with -Dfeed.durable=false
+    public static final BillFeed billFeed = new BillFeed(Boolean.parseBoolean(System.getProperty("feed.durable", "true"))
+            ? new BillFeedLog(Paths.get(System.getProperty("feed.dir", "feed"), "bills.log")) : null);
+    // Reorder point given to products added from the restocking menu
+    public static final int DEFAULT_REORDER_POINT = 10;
+    public static final LowStockMonitor lowStockMonitor = new LowStockMonitor(Paths.get(System.getProperty("alerts.dir", "alerts"), "low-stock.log"));
+    // Daily sales velocity per product; alpha 0.2 weighs roughly the last week and a half
+    public static final SalesVelocity salesVelocity = new SalesVelocity(Paths.get(System.getProperty("analytics.dir", "analytics"), "velocity-cursor.dat"),
+            Double.parseDouble(System.getProperty("velocity.alpha", "0.2")));
+    public static final SalesRollups salesRollups = new SalesRollups(Paths.get(System.getProperty("analytics.dir", "analytics"), "rollups.dat"));
+    public static final BestSellers bestSellers = new BestSellers(Paths.get(System.getProperty("analytics.dir", "analytics"), "bestsellers.dat"));
+    public static final CustomerProfiles customerProfiles = new CustomerProfiles(Paths.get(System.getProperty("analytics.dir", "analytics"), "customers.dat"));
+    public static final FeedbackIndex feedbackIndex = new FeedbackIndex();
+    // Feedback the database refuses is kept in the rejected file instead of being retried forever
+    public static final FeedbackPipeline feedbackPipeline = new FeedbackPipeline(feedbackIndex,
+            Paths.get(System.getProperty("feedback.dir", "feedback"), "rejected.log"));
+    public static final CoPurchaseIndex coPurchaseIndex = new CoPurchaseIndex(Paths.get(System.getProperty("analytics.dir", "analytics"), "copurchase-index.dat"));
+    // End-of-day totals for the Z-report
+    public static final DayClose dayClose = new DayClose(Paths.get(System.getProperty("analytics.dir", "analytics")),
+            Paths.get(System.getProperty("zreport.dir", "zreports")));
+    // Card and UPI authorization; runs against the local simulator, with a 10 second timeout and two retries by default
+    public static final PaymentGateway paymentGateway = new PaymentGateway(
+            new SimulatedPaymentProcessor(Long.getLong("payment.sim.latency.ms", 300),
+                    Double.parseDouble(System.getProperty("payment.sim.failure.rate", "0.02")),
+                    Double.parseDouble(System.getProperty("payment.sim.decline.rate", "0.01"))),
+            Long.getLong("payment.timeout.ms", 10_000L), Integer.getInteger("payment.retries", 2));
+
 
     public static void main(String[] args) throws Exception {
         try {
+            offlineStore.open();
             // Connect to MySQL database
             Connection connection = DriverManager.getConnection(URL, USER, PASSWORD);
             System.out.println("Connected to the database.");
+            CustomerCache.shared().warm(connection);
+            knownEmails = EmailBloomFilter.build(connection, 0.01);
+            // Bring back bills that were open when the till last stopped before taking new ones
+            cartJournal.recover(connection, ABANDONED_BILL_TTL_MILLIS);
+            billReaper.start();
+            offlineStore.snapshotCatalog(connection);
+            offlineStore.start();
+            if (billFeed.getLog() != null) {
+                billFeed.getLog().open();
+            }
+            lowStockMonitor.load(connection);
+            salesVelocity.load();
+            coPurchaseIndex.load(billFeed.getLog());
+            billFeed.subscribe(coPurchaseIndex::onBill);
+            salesRollups.load(billFeed.getLog());
+            billFeed.subscribe(salesRollups::onBill);
+            bestSellers.load(billFeed.getLog());
+            billFeed.subscribe(bestSellers::onBill);
+            customerProfiles.load(connection, billFeed.getLog());
+            billFeed.subscribe(customerProfiles::onBill);
+            billFeed.subscribe(lowStockMonitor::onBill);
+            dayClose.load(billFeed.getLog());
+            billFeed.subscribe(dayClose::onBill);
+            billFeed.start();
+            feedbackPipeline.load(connection);
+            feedbackIndex.build(connection);
+            feedbackPipeline.start();
 
             // Create a scanner object for user input
             Scanner scanner = new Scanner(System.in);
@@ -25,6 +96,11 @@ public class RetailShopBillingSystem{
             displayWelcomeMessage();
 
             while (true) {
+                // Pick the link back up if it dropped during the last operation
+                connection = reconnectIfNeeded(connection);
+                // Settle bills whose card or UPI authorization came back while the till was busy
+                settleAuthorizedPayments(connection);
+
                 // Display main menu options
                 displayMainMenu();
 
@@ -46,8 +122,25 @@ public class RetailShopBillingSystem{
                     	handleCustomerAndStockReports(connection);
                         break;
                     case 4:
+                        handleReturn(connection);
+                        break;
+                    case 5:
+                    	if (paymentGateway.pendingCount() > 0) {
+                    	    System.out.println(paymentGateway.pendingCount() + " payment(s) are still authorizing. Wait for them to finish before exiting.");
+                    	    break;
+                    	}
                     	System.out.println("Thank you for visiting Nellai Mart! Have a great day!");
                         scanner.close();
+                        billReaper.stop();
+                        offlineStore.stop();
+                        billFeed.stop();
+                        feedbackPipeline.stop(10_000L);
+                        coPurchaseIndex.save(billFeed.getLog());
+                        salesRollups.save(billFeed.getLog());
+                        bestSellers.save(billFeed.getLog());
+                        customerProfiles.save(billFeed.getLog());
+                        dayClose.save(billFeed.getLog());
+                        cartJournal.close();
                         connection.close();
                         return;
                     default:
@@ -59,6 +152,29 @@ public class RetailShopBillingSystem{
             e.printStackTrace();
         }
     }
+
+    public static boolean isLinkDown(Connection connection) {
+        try {
+            return !connection.isValid(2);
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    public static Connection reconnectIfNeeded(Connection connection) {
+        if (!isLinkDown(connection)) {
+            return connection;
+        }
+        try {
+            Connection reconnected = DriverManager.getConnection(URL, USER, PASSWORD);
+            System.out.println("Reconnected to the database.");
+            return reconnected;
+        } catch (SQLException e) {
+            offlineStore.markOffline();
+            System.out.println("Database unavailable. Billing offline, " + offlineStore.pendingCount() + " bill(s) waiting to be sent.");
+            return connection;
+        }
+    }
 //******************************************displayWelcomeMessage*********************************************************************
     public static void displayWelcomeMessage() {
     	System.out.println("---------------------------------------------------------");
@@ -82,7 +198,9 @@ public class RetailShopBillingSystem{
         System.out.println("   - Provide feedback.");
         System.out.println("3. Customer and Stock Reports");
         System.out.println("   - Generate detailed customer and stock analytical reports.");
-        System.out.println("4. Exit");
+        System.out.println("4. Returns and Refunds");
+        System.out.println("   - Take goods back against a paid bill and refund the customer.");
+        System.out.println("5. Exit");
         System.out.print("Enter your choice: ");
     }
     
@@ -96,6 +214,7 @@ public class RetailShopBillingSystem{
         System.out.println("Billing Menu:");
         System.out.println("1. New Customer");
         System.out.println("2. Existing Customer");
+        System.out.println("3. Bulk Customer Import (CSV)");
         System.out.print("Enter your choice: ");
         int choice = scanner.nextInt();
 
@@ -106,12 +225,30 @@ public class RetailShopBillingSystem{
             case 2:
                 handleExistingCustomer(connection);
                 break;
+            case 3:
+                handleBulkCustomerImport(connection);
+                break;
             default:
                 System.out.println("Invalid choice. Returning to main menu.");
                 break;
         }
     }
 
+    public static void handleBulkCustomerImport(Connection connection) {
+        Scanner scanner = new Scanner(System.in);
+
+        // The file has one customer per line: name,email,phone,address
+        System.out.print("Enter path of the customer CSV file: ");
+        String path = scanner.nextLine().trim();
+        try {
+            CustomerBulkImport.importFile(connection, Paths.get(path));
+        } catch (IOException e) {
+            System.out.println("Could not read the file: " + e.getMessage());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     public static void handleNewCustomer(Connection connection) {
         try {
             Scanner scanner = new Scanner(System.in);
@@ -144,54 +281,27 @@ public class RetailShopBillingSystem{
             int customerId = insertNewCustomer(connection, customerName, customerEmail, customerPhone, customerAddress);
 
             // Create a new bill for the new customer
-            int billId = insertNewBill(connection, customerId);
+            int billId = openNewBill(connection, customerId);
             
             System.out.println("New bill created with ID: " + billId + " for customer ID: " + customerId);
             handleBillingOperations(connection, billId, customerId);
+        } catch (SQLIntegrityConstraintViolationException e) {
+            // Another till registered the same email after our filter was built; the unique key caught it
+            System.out.println("The email address provided already exists. Please enter a different email address.");
         } catch (SQLException e) {
             e.printStackTrace();
             
         }
     }
     public static boolean isValidCustomerInput(String name, String email, String phone, String address) {
-        // Check if any field is empty
-        if (name == null || name.trim().isEmpty() ||
-            email == null || email.trim().isEmpty() ||
-            phone == null || phone.trim().isEmpty() ||
-            address == null || address.trim().isEmpty()) {
-            return false;
-        }
-
-        // Validate email format
-        String emailRegex = "^[A-Za-z0-9+_.-]+@[A-Za-z0-9.-]+$";
-        Pattern emailPattern = Pattern.compile(emailRegex);
-        Matcher emailMatcher = emailPattern.matcher(email);
-        if (!emailMatcher.matches()) {
-            return false;
-        }
-
-        // Validate phone number format (assuming a 10-digit phone number for this example)
-        String phoneRegex = "^[0-9]{10}$";
-        Pattern phonePattern = Pattern.compile(phoneRegex);
-        Matcher phoneMatcher = phonePattern.matcher(phone);
-        if (!phoneMatcher.matches()) {
-            return false;
-        }
-
-        return true;
+        return CustomerInputValidator.isValid(name, email, phone, address);
     }
     public static boolean isExistingEmail(Connection connection, String email) throws SQLException {
-        String query = "SELECT COUNT(*) AS count FROM customers WHERE email = ?";
-        try (PreparedStatement statement = connection.prepareStatement(query)) {
-            statement.setString(1, email);
-            try (ResultSet resultSet = statement.executeQuery()) {
-                if (resultSet.next()) {
-                    int count = resultSet.getInt("count");
-                    return count > 0;
-                }
-            }
+        // Definitely-new emails skip the database; only possible duplicates are confirmed there
+        if (knownEmails != null && !knownEmails.mightContain(email)) {
+            return false;
         }
-        return false;
+        return CustomerCache.shared().findByEmail(connection, email) != null;
     }
     public static void handleExistingCustomer(Connection connection) {
         try {
@@ -200,7 +310,7 @@ public class RetailShopBillingSystem{
             // Ask for customer details
             System.out.print("Enter customer name: ");
             String customerName = scanner.nextLine();
-            System.out.print("Enter customer email address: ");
+            System.out.print("Enter customer email address or phone: ");
             String customerEmail = scanner.nextLine();
 
             // Get customer ID
@@ -208,7 +318,7 @@ public class RetailShopBillingSystem{
 
             if (customerId != 0) {
                 // Create a new bill for the existing customer
-                int billId = insertNewBill(connection, customerId);
+                int billId = openNewBill(connection, customerId);
 
                 System.out.println("New bill created with ID: " + billId + " for customer ID: " + customerId);
                 handleBillingOperations(connection, billId, customerId);
@@ -220,20 +330,11 @@ public class RetailShopBillingSystem{
         }
     }
 
-    public static int insertNewBill(Connection connection, int customerId) throws SQLException {
-        // Insert a bill with a default valid total value to satisfy the check constraint
-        String query = "INSERT INTO bills (customer_id, tot_quantity, total, payment_method) VALUES (?, 0, 1.0, 'cash')";
-        try (PreparedStatement preparedStatement = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
-            preparedStatement.setInt(1, customerId);
-            preparedStatement.executeUpdate();
-            try (ResultSet generatedKeys = preparedStatement.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    return generatedKeys.getInt(1);
-                } else {
-                    throw new SQLException("Creating bill failed, no ID obtained.");
-                }
-            }
-        }
+    public static int openNewBill(Connection connection, int customerId) throws SQLException {
+        // Opening a bill only takes an id from this counter's block; the bills row is written at settlement
+        int billId = billIdAllocator.nextId(connection);
+        BillCart.open(billId, customerId);
+        return billId;
     }
 
 
@@ -247,7 +348,13 @@ public class RetailShopBillingSystem{
             preparedStatement.executeUpdate();
             try (ResultSet generatedKeys = preparedStatement.getGeneratedKeys()) {
                 if (generatedKeys.next()) {
-                    return generatedKeys.getInt(1);
+                    int customerId = generatedKeys.getInt(1);
+                    if (knownEmails != null) {
+                        knownEmails.put(customerEmail);
+                    }
+                    // Write through so the customer's next visit is served from memory
+                    CustomerCache.shared().put(new Customer(customerId, customerName, customerEmail, customerPhone, customerAddress));
+                    return customerId;
                 } else {
                     throw new SQLException("Creating customer failed, no ID obtained.");
                 }
@@ -255,19 +362,19 @@ public class RetailShopBillingSystem{
         }
     }
 
-    public static int getCustomerId(Connection connection, String customerName, String customerEmail) throws SQLException {
-        int customerId = 0;
-        String query = "SELECT id FROM customers WHERE name = ? AND email = ?";
-        try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
-            preparedStatement.setString(1, customerName);
-            preparedStatement.setString(2, customerEmail);
-            try (ResultSet resultSet = preparedStatement.executeQuery()) {
-                if (resultSet.next()) {
-                    customerId = resultSet.getInt("id");
-                }
-            }
+    // Looks the customer up by email, or by phone when only digits are given, and checks the name matches
+    public static int getCustomerId(Connection connection, String customerName, String customerEmailOrPhone) throws SQLException {
+        String key = customerEmailOrPhone.trim();
+        Customer customer;
+        if (!key.isEmpty() && key.chars().allMatch(Character::isDigit)) {
+            customer = CustomerCache.shared().findByPhone(connection, key, customerName);
+        } else {
+            customer = CustomerCache.shared().findByEmail(connection, key);
+        }
+        if (customer != null && customer.getName().equalsIgnoreCase(customerName.trim())) {
+            return Integer.parseInt(customer.getCustomerId());
         }
-        return customerId;
+        return 0;
     }
 //*********************************************BillingOperations*****************************************************
     public static void handleBillingOperations(Connection connection, int billId, int customerId) throws SQLException {
@@ -311,39 +418,57 @@ public class RetailShopBillingSystem{
 
 //*************************************************handlePaymentMethods*******************************************
 
-    public static void handlePaymentMethods(Connection connection, int billId, int customerId) throws SQLException {
+    // True when the bill was settled here; card and UPI payments settle later from the main loop
+    public static boolean handlePaymentMethods(Connection connection, int billId, int customerId) throws SQLException {
         Scanner scanner = new Scanner(System.in);
 
-        if (!isValidBillAndCustomer(connection, billId, customerId)) {
+        if (!isValidBillAndCustomer(billId, customerId)) {
             System.out.println("Invalid Bill ID or Customer ID. Returning to main menu.");
-            return;
+            return false;
+        }
+        if (BillCart.get(billId).isEmpty()) {
+            System.out.println("No items found in the bill. Returning to main menu.");
+            return false;
+        }
+        if (paymentGateway.isPending(billId)) {
+            System.out.println("Bill " + billId + " is already waiting for payment authorization.");
+            return false;
         }
         // Display payment methods menu options
         System.out.println("Payment Methods Menu:");
         System.out.println("1. UPI");
         System.out.println("2. Cash");
         System.out.println("3. Credit Card");
+        System.out.println("4. Split Payment");
         System.out.print("Enter your choice: ");
         int choice = scanner.nextInt();
-        boolean paymentSuccess = false;
+        // Still readable once settlement closes it
+        BillCart cart = BillCart.get(billId);
+        List<Tender> tenders = null;
 
         switch (choice) {
             case 1:
-                paymentSuccess = handleUPIPayment(connection, billId, customerId);
-                break;
+                // Authorizes in the background; the bill is settled from the main menu once it answers
+                handleUPIPayment(connection, billId, customerId);
+                return false;
             case 2:
-                paymentSuccess = handleCashPayment(connection, billId, customerId);
+                if (handleCashPayment(connection, billId, customerId)) {
+                    tenders = Collections.singletonList(new Tender("cash", cart.getTotal(), null));
+                }
                 break;
             case 3:
-                paymentSuccess = handleCreditCardPayment(connection, billId, customerId);
+                handleCreditCardPayment(connection, billId, customerId);
+                return false;
+            case 4:
+                tenders = handleSplitPayment(connection, billId, customerId);
                 break;
             default:
                 System.out.println("Invalid choice. Returning to main menu.");
-                return;
+                return false;
         }
 
-        if (paymentSuccess) {
-            updateProductStockAfterPayment(connection, billId);
+        if (tenders != null) {
+            billFeed.publish(BillEvent.settled(cart, tenders));
             System.out.println("Payment successful. Stock updated.");
             System.out.print("Would you like to proceed with our feedback section? (yes/no): ");
             String proceedPayment = scanner.next();
@@ -351,47 +476,344 @@ public class RetailShopBillingSystem{
                 addFeedback(connection, customerId);
             } else {
                 System.out.println("Returning to main menu.");
+            }
+            return true;
+        }
+        System.out.println("Payment failed. Returning to main menu.");
+        return false;
+    }
+
+    // Settles every bill whose authorization has finished; declined bills stay open for another payment.
+    // The bill is held by the gateway until this has finished with it.
+    public static void settleAuthorizedPayments(Connection connection) {
+        AuthorizationResult result;
+        while ((result = paymentGateway.pollCompleted()) != null) {
+            try {
+                settleAuthorizedPayment(connection, result);
+            } finally {
+                paymentGateway.release(result.getRequest().getBillId());
+            }
+        }
+    }
+
+    private static void settleAuthorizedPayment(Connection connection, AuthorizationResult result) {
+        PaymentRequest request = result.getRequest();
+        int billId = request.getBillId();
+        String tender = "upi".equals(request.getTender()) ? "UPI" : "Credit Card";
+        if (!result.isApproved()) {
+            System.out.println(tender + " payment for bill " + billId + (result.isUnknown() ? " got no answer: " : " was declined: ")
+                    + result.getMessage() + ". Take another payment from the main menu.");
+            return;
+        }
+        BillCart cart = BillCart.get(billId);
+        if (cart == null) {
+            System.out.println("Bill " + billId + " closed before its " + tender + " payment was approved. Reversing authorization "
+                    + result.getAuthorizationCode() + ".");
+            paymentGateway.reverse(request);
+            return;
+        }
+        // Card bills keep the authorization code, UPI bills the customer's transaction reference
+        List<Tender> tenders = Collections.singletonList(new Tender(request.getTender(), request.getAmount(),
+                request.getReference() != null ? request.getReference() : result.getAuthorizationCode()));
+        try {
+            settleBill(connection, cart, tenders);
+            System.out.println("Payment successful using " + tender + " for bill " + billId + ".");
+            System.out.printf("Total Amount: %.2f%n", request.getAmount());
+            System.out.println("Authorization Code: " + result.getAuthorizationCode());
+            if (request.getReference() != null) {
+                System.out.println("UPI ID: " + request.getAccount());
+                System.out.println("Transaction Reference Number: " + request.getReference());
+            }
+            displayProductAfterBill(connection, billId, request.getCustomerId());
+            billFeed.publish(BillEvent.settled(cart, tenders));
+            System.out.println("Payment successful. Stock updated.");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("Bill " + billId + " could not be settled; it is still open. Reversing authorization "
+                    + result.getAuthorizationCode() + ".");
+            paymentGateway.reverse(request);
+        }
+    }
+
+    // Takes goods back against a settled bill: the customer picks lines and quantities up to what is
+    // still unreturned, and the refund is paid out at the bill's rates
+    public static void handleReturn(Connection connection) {
+        Scanner scanner = new Scanner(System.in);
+        System.out.print("Enter BillId of the paid bill: ");
+        int billId = scanner.nextInt();
+        scanner.nextLine();
+        try {
+            int[] header = getBillCustomerAndVersion(connection, billId);
+            if (header == null) {
+                System.out.println("Bill " + billId + " was not found. Returning to main menu.");
                 return;
             }
-        } else {
-            System.out.println("Payment failed. Returning to main menu.");
+            // Product id -> {units still returnable, rate}, with names for matching what the cashier types
+            Map<Integer, double[]> returnable = new LinkedHashMap<>();
+            Map<String, Integer> productIdsByName = new HashMap<>();
+            String itemsQuery = "SELECT bi.product_id, p.name, SUM(bi.quantity) AS net_quantity, " +
+                    "MAX(CASE WHEN bi.quantity > 0 THEN bi.price END) AS rate " +
+                    "FROM bill_items bi JOIN products p ON p.id = bi.product_id WHERE bi.bill_id = ? GROUP BY bi.product_id, p.name";
+            try (PreparedStatement statement = connection.prepareStatement(itemsQuery)) {
+                statement.setInt(1, billId);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    System.out.printf("%-8s %-24s %-10s %-10s%n", "ID", "Product", "Returnable", "Rate");
+                    while (resultSet.next()) {
+                        int netQuantity = resultSet.getInt("net_quantity");
+                        if (netQuantity <= 0) {
+                            continue;
+                        }
+                        int productId = resultSet.getInt("product_id");
+                        returnable.put(productId, new double[] {netQuantity, resultSet.getDouble("rate")});
+                        productIdsByName.put(resultSet.getString("name").toLowerCase(), productId);
+                        System.out.printf("%-8d %-24s %-10d %-10.2f%n", productId, resultSet.getString("name"), netQuantity, resultSet.getDouble("rate"));
+                    }
+                }
+            }
+            if (returnable.isEmpty()) {
+                System.out.println("Nothing left to return on bill " + billId + ".");
+                return;
+            }
+
+            Map<Integer, Integer> returning = new LinkedHashMap<>();
+            while (true) {
+                System.out.print("Enter product name to return (or 'done'): ");
+                String productName = scanner.nextLine().trim();
+                if ("done".equalsIgnoreCase(productName)) {
+                    break;
+                }
+                Integer productId = productIdsByName.get(productName.toLowerCase());
+                if (productId == null) {
+                    System.out.println("That product is not on the bill or was already returned.");
+                    continue;
+                }
+                System.out.print("Enter quantity to return: ");
+                int quantity = scanner.nextInt();
+                scanner.nextLine();
+                int available = (int) returnable.get(productId)[0] - returning.getOrDefault(productId, 0);
+                if (quantity <= 0 || quantity > available) {
+                    System.out.println("Quantity must be between 1 and " + available + ".");
+                    continue;
+                }
+                returning.merge(productId, quantity, Integer::sum);
+            }
+            if (returning.isEmpty()) {
+                System.out.println("Nothing returned. Returning to main menu.");
+                return;
+            }
+
+            int[] productIds = new int[returning.size()];
+            int[] quantities = new int[returning.size()];
+            double[] rates = new double[returning.size()];
+            long refundPaise = 0;
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : returning.entrySet()) {
+                productIds[i] = entry.getKey();
+                quantities[i] = entry.getValue();
+                rates[i] = returnable.get(entry.getKey())[1];
+                refundPaise += Tender.paise(quantities[i] * rates[i]);
+                i++;
+            }
+            double refund = refundPaise / 100.0;
+
+            System.out.printf("Refund due: %.2f%n", refund);
+            System.out.println("Refund to: 1. Cash  2. UPI  3. Credit Card");
+            System.out.print("Enter your choice: ");
+            int choice = scanner.nextInt();
+            String method = choice == 2 ? "upi" : choice == 3 ? "credit_card" : "cash";
+            String reference = null;
+            if (!"cash".equals(method)) {
+                System.out.print("Enter refund reference number: ");
+                reference = scanner.next();
+            }
+
+            writeReturn(connection, billId, header[1], productIds, quantities, rates, new Tender(method, -refund, reference));
+            offlineStore.recordReturn(productIds, quantities);
+            BillEvent event = BillEvent.refunded(billId, header[0], method, productIds, quantities, rates);
+            billFeed.publish(event);
+            System.out.printf("Returned %d item(s) on bill %d. Refunded %.2f by %s. Stock updated.%n",
+                    event.getTotalQuantity(), billId, refund, method);
+        } catch (SQLException e) {
+            if (isLinkDown(connection)) {
+                System.out.println("Returns need the database, which is unreachable. Try again when the link is back.");
+            } else {
+                System.out.println("Return failed: " + e.getMessage());
+            }
         }
     }
 
-    public static boolean isValidBillAndCustomer(Connection connection, int billId, int customerId) {
-        String query = "SELECT COUNT(*) FROM bills WHERE id = ? AND customer_id = ?";
+    // {customer id, version} of a settled bill, or null if there is none
+    public static int[] getBillCustomerAndVersion(Connection connection, int billId) throws SQLException {
+        String query = "SELECT customer_id, version FROM bills WHERE id = ?";
         try (PreparedStatement statement = connection.prepareStatement(query)) {
             statement.setInt(1, billId);
-            statement.setInt(2, customerId);
             try (ResultSet resultSet = statement.executeQuery()) {
-                if (resultSet.next()) {
-                    int count = resultSet.getInt(1);
-                    return count > 0;
+                return resultSet.next() ? new int[] {resultSet.getInt("customer_id"), resultSet.getInt("version")} : null;
+            }
+        }
+    }
+
+    // Writes the negative lines, the refund tender, the re-credited stock and the reduced bill total in one
+    // transaction. The bill is only changed if its version is still the one the return was worked out
+    // from, so two terminals cannot return the same goods twice.
+    public static void writeReturn(Connection connection, int billId, int expectedVersion, int[] productIds, int[] quantities,
+                                   double[] rates, Tender refund) throws SQLException {
+        String updateBillQuery = "UPDATE bills SET total = total + ?, tot_quantity = tot_quantity - ?, version = version + 1 " +
+                "WHERE id = ? AND version = ?";
+        String insertItemQuery = "INSERT INTO bill_items (bill_id, product_id, quantity, price) VALUES (?, ?, ?, ?)";
+        String updateStockQuery = "UPDATE products SET stock = stock + ? WHERE id = ?";
+        int returnedQuantity = 0;
+        for (int quantity : quantities) {
+            returnedQuantity += quantity;
+        }
+        connection.setAutoCommit(false);
+        try {
+            try (PreparedStatement updateBillStatement = connection.prepareStatement(updateBillQuery)) {
+                updateBillStatement.setDouble(1, refund.getAmount());
+                updateBillStatement.setInt(2, returnedQuantity);
+                updateBillStatement.setInt(3, billId);
+                updateBillStatement.setInt(4, expectedVersion);
+                if (updateBillStatement.executeUpdate() == 0) {
+                    throw new SQLException("Bill " + billId + " was changed by another terminal. Start the return again.");
                 }
             }
+            try (PreparedStatement insertItemStatement = connection.prepareStatement(insertItemQuery)) {
+                for (int i = 0; i < productIds.length; i++) {
+                    insertItemStatement.setInt(1, billId);
+                    insertItemStatement.setInt(2, productIds[i]);
+                    insertItemStatement.setInt(3, -quantities[i]);
+                    insertItemStatement.setDouble(4, rates[i]);
+                    insertItemStatement.addBatch();
+                }
+                insertItemStatement.executeBatch();
+            }
+            insertBillPayments(connection, billId, Collections.singletonList(refund));
+            try (PreparedStatement updateStockStatement = connection.prepareStatement(updateStockQuery)) {
+                for (int i = 0; i < productIds.length; i++) {
+                    updateStockStatement.setInt(1, quantities[i]);
+                    updateStockStatement.setInt(2, productIds[i]);
+                    updateStockStatement.addBatch();
+                }
+                updateStockStatement.executeBatch();
+            }
+            connection.commit();
         } catch (SQLException e) {
-            e.printStackTrace();
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
         }
-        return false;
     }
 
-    public static void updateProductStockAfterPayment(Connection connection, int billId) throws SQLException {
-        // Query to get the quantities of products in the bill
-        String query = "SELECT product_id, quantity FROM bill_items WHERE bill_id = ?";
-        try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
-            preparedStatement.setInt(1, billId);
-            try (ResultSet resultSet = preparedStatement.executeQuery()) {
-                while (resultSet.next()) {
-                    int productId = resultSet.getInt("product_id");
-                    int quantity = resultSet.getInt("quantity");
-
-                    // Update the stock in the products table
-                    String updateStockQuery = "UPDATE products SET stock = stock - ? WHERE id = ?";
-                    try (PreparedStatement updateStockStatement = connection.prepareStatement(updateStockQuery)) {
-                        updateStockStatement.setInt(1, quantity);
-                        updateStockStatement.setInt(2, productId);
-                        updateStockStatement.executeUpdate();
-                    }
+    // Only bills still open on this till can be paid
+    public static boolean isValidBillAndCustomer(int billId, int customerId) {
+        BillCart cart = BillCart.get(billId);
+        return cart != null && cart.getCustomerId() == customerId;
+    }
+
+    // Settles against MySQL, or saves the bill on this till when the database is unreachable
+    // or earlier offline bills are still waiting to be sent, then closes the cart
+    public static void settleBill(Connection connection, BillCart cart, String paymentMethod) throws SQLException {
+        settleBill(connection, cart, Collections.singletonList(new Tender(paymentMethod, cart.getTotal(), null)));
+    }
+
+    public static void settleBill(Connection connection, BillCart cart, List<Tender> tenders) throws SQLException {
+        if (Tender.totalPaise(tenders) != Tender.paise(cart.getTotal())) {
+            throw new SQLException(String.format("Payments of %.2f do not match the bill total of %.2f.",
+                    Tender.totalPaise(tenders) / 100.0, cart.getTotal()));
+        }
+        if (!offlineStore.isOffline()) {
+            try {
+                writeBill(connection, cart, tenders);
+                offlineStore.recordSale(cart);
+                BillCart.close(cart.getBillId());
+                return;
+            } catch (SQLException e) {
+                if (!isLinkDown(connection)) {
+                    throw e;
+                }
+                offlineStore.markOffline();
+            }
+        }
+        try {
+            offlineStore.queueBill(cart, tenders);
+        } catch (IOException e) {
+            throw new SQLException("Could not save bill " + cart.getBillId() + " on this till.", e);
+        }
+        System.out.println("Database unavailable. Bill " + cart.getBillId() + " is saved on this till and will be sent when the link returns.");
+        displayProductFromCart(cart, tenders);
+        BillCart.close(cart.getBillId());
+    }
+
+    // Writes the bill header, its items, its tenders and the stock decrement in one transaction
+    public static void writeBill(Connection connection, BillCart cart, List<Tender> tenders) throws SQLException {
+        String insertBillQuery = "INSERT INTO bills (id, customer_id, counter_id, tot_quantity, total, payment_method) VALUES (?, ?, ?, ?, ?, ?)";
+        String insertItemQuery = "INSERT INTO bill_items (bill_id, product_id, quantity, price) VALUES (?, ?, ?, ?)";
+        connection.setAutoCommit(false);
+        try {
+            try (PreparedStatement insertBillStatement = connection.prepareStatement(insertBillQuery)) {
+                insertBillStatement.setInt(1, cart.getBillId());
+                insertBillStatement.setInt(2, cart.getCustomerId());
+                insertBillStatement.setInt(3, COUNTER_ID);
+                insertBillStatement.setInt(4, cart.getTotalQuantity());
+                insertBillStatement.setDouble(5, cart.getTotal());
+                insertBillStatement.setString(6, Tender.methodOf(tenders));
+                insertBillStatement.executeUpdate();
+            }
+            try (PreparedStatement insertItemStatement = connection.prepareStatement(insertItemQuery)) {
+                for (BillCart.Line line : cart.getLines()) {
+                    insertItemStatement.setInt(1, cart.getBillId());
+                    insertItemStatement.setInt(2, line.getProductId());
+                    insertItemStatement.setInt(3, line.getQuantity());
+                    insertItemStatement.setDouble(4, line.getRate());
+                    insertItemStatement.addBatch();
+                }
+                insertItemStatement.executeBatch();
+            }
+            insertBillPayments(connection, cart.getBillId(), tenders);
+            updateProductStockAfterPayment(connection, cart);
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    // All of a bill's tenders go in one multi-row INSERT, so a split payment costs no more round trips than a single one
+    public static void insertBillPayments(Connection connection, int billId, List<Tender> tenders) throws SQLException {
+        StringBuilder query = new StringBuilder("INSERT INTO bill_payments (bill_id, tender, amount, reference) VALUES ");
+        for (int i = 0; i < tenders.size(); i++) {
+            query.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+        }
+        try (PreparedStatement statement = connection.prepareStatement(query.toString())) {
+            int index = 1;
+            for (Tender tender : tenders) {
+                statement.setInt(index++, billId);
+                statement.setString(index++, tender.getMethod());
+                statement.setDouble(index++, tender.getAmount());
+                statement.setString(index++, tender.getReference());
+            }
+            statement.executeUpdate();
+        }
+    }
+
+    public static void updateProductStockAfterPayment(Connection connection, BillCart cart) throws SQLException {
+        // Decrement the stock for every line in one batch; a line that would go below zero fails the settlement
+        String updateStockQuery = "UPDATE products SET stock = stock - ? WHERE id = ? AND stock >= ?";
+        try (PreparedStatement updateStockStatement = connection.prepareStatement(updateStockQuery)) {
+            List<BillCart.Line> lines = new ArrayList<>(cart.getLines());
+            for (BillCart.Line line : lines) {
+                updateStockStatement.setInt(1, line.getQuantity());
+                updateStockStatement.setInt(2, line.getProductId());
+                updateStockStatement.setInt(3, line.getQuantity());
+                updateStockStatement.addBatch();
+            }
+            int[] updateCounts = updateStockStatement.executeBatch();
+            for (int i = 0; i < updateCounts.length; i++) {
+                if (updateCounts[i] == 0) {
+                    throw new SQLException("Insufficient stock for " + lines.get(i).getProductName() + ".");
                 }
             }
         }
@@ -407,6 +829,12 @@ public class RetailShopBillingSystem{
         System.out.println("1. Customer Report");
         System.out.println("2. Stock Report");
         System.out.println("3. Re-Stocking Product");
+        System.out.println("4. Abandoned Bill Metrics");
+        System.out.println("5. Sales Trends");
+        System.out.println("6. Sales So Far Today");
+        System.out.println("7. Export Reports");
+        System.out.println("8. Feedback Report");
+        System.out.println("9. End of Day (Z-Report)");
         System.out.print("Enter your choice: ");
         int choice = scanner.nextInt();
 
@@ -420,86 +848,283 @@ public class RetailShopBillingSystem{
             case 3:
             	restockingOptions(connection);
                 break;
+            case 4:
+                billReaper.printMetrics();
+                break;
+            case 5:
+                displaySalesTrends();
+                break;
+            case 6:
+                displaySalesToday();
+                break;
+            case 7:
+                exportReport(connection);
+                break;
+            case 8:
+                displayFeedbackReport();
+                break;
+            case 9:
+                closeDay(connection);
+                break;
             default:
                 System.out.println("Invalid choice. Returning to main menu.");
                 break;
         }
     }
+    // Issues this counter's signed Z-report for a business day from the running totals
+    public static void closeDay(Connection connection) {
+        Scanner scanner = new Scanner(System.in);
+        System.out.print("Enter business date (YYYY-MM-DD) or 'today': ");
+        String input = scanner.next().trim();
+        LocalDate date;
+        try {
+            date = "today".equalsIgnoreCase(input) ? LocalDate.now() : LocalDate.parse(input);
+        } catch (DateTimeParseException e) {
+            System.out.println("Invalid date. Returning to main menu.");
+            return;
+        }
+        if (paymentGateway.pendingCount() > 0) {
+            System.out.println(paymentGateway.pendingCount() + " payment(s) are still authorizing. Close the day once they are settled.");
+            return;
+        }
+        try {
+            // Bills settled a moment ago must be in the totals
+            if (!billFeed.awaitDelivered(5_000L)) {
+                System.out.println("Bill feed is behind; try again shortly.");
+                return;
+            }
+            long started = System.nanoTime();
+            Path file = dayClose.writeZReport(connection, COUNTER_ID, date);
+            for (String line : Files.readAllLines(file)) {
+                System.out.println(line);
+            }
+            System.out.printf("Z-report saved to %s in %d ms.%n", file, (System.nanoTime() - started) / 1_000_000);
+        } catch (FileAlreadyExistsException e) {
+            System.out.println("A Z-report for counter " + COUNTER_ID + " on " + date + " was already issued: " + e.getFile());
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void exportReport(Connection connection) {
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Export: 1. Customer Report  2. Stock Report");
+        System.out.print("Enter your choice: ");
+        int reportChoice = scanner.nextInt();
+        System.out.println("Format: 1. CSV  2. Columnar (.rscf)");
+        System.out.print("Enter your choice: ");
+        String format = scanner.nextInt() == 2 ? ReportExporter.COLUMNAR : ReportExporter.CSV;
+
+        String report = reportChoice == 2 ? "stock" : "customers";
+        String query = reportChoice == 2 ? STOCK_REPORT_QUERY : CUSTOMER_REPORT_QUERY;
+        Path file = Paths.get(System.getProperty("export.dir", "exports"),
+                report + "-" + LocalDateTime.now().toString().replace(':', '-') + "." + format);
+
+        long start = System.nanoTime();
+        try {
+            long rows = ReportExporter.export(connection, query, file, format);
+            System.out.printf("Exported %d row(s) to %s in %.2f s.%n", rows, file, (System.nanoTime() - start) / 1e9);
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Answered from the in-memory rating histograms; the feedback table is not queried
+    public static void displayFeedbackReport() {
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Feedback Report:");
+        System.out.println("1. Overall and last 14 days");
+        System.out.println("2. Specific customer");
+        System.out.println("3. Search comments");
+        System.out.print("Enter your choice: ");
+        int choice = scanner.nextInt();
+        scanner.nextLine();
+
+        if (choice == 3) {
+            System.out.print("Enter keywords: ");
+            String keywords = scanner.nextLine();
+            int[] matches = feedbackIndex.search(keywords);
+            System.out.printf("%-14s %-6s %-6s %-6s %-6s %-6s %-8s %-8s%n", "", "1", "2", "3", "4", "5", "Count", "Average");
+            printRatingHistogram("Matching", matches);
+            printRatingHistogram("All comments", feedbackPipeline.getByDay().total());
+            return;
+        }
+
+        System.out.printf("%-14s %-6s %-6s %-6s %-6s %-6s %-8s %-8s%n", "", "1", "2", "3", "4", "5", "Count", "Average");
+        switch (choice) {
+            case 1:
+                printRatingHistogram("Overall", feedbackPipeline.getByDay().total());
+                LocalDate today = LocalDate.now();
+                for (int i = 13; i >= 0; i--) {
+                    LocalDate day = today.minusDays(i);
+                    printRatingHistogram(day.toString(), feedbackPipeline.getByDay().get((int) day.toEpochDay()));
+                }
+                break;
+            case 2:
+                System.out.print("Enter customer ID: ");
+                int customerId = scanner.nextInt();
+                printRatingHistogram("Customer " + customerId, feedbackPipeline.getByCustomer().get(customerId));
+                break;
+            default:
+                System.out.println("Invalid choice.");
+                break;
+        }
+        if (feedbackPipeline.pending() > 0) {
+            System.out.println(feedbackPipeline.pending() + " submission(s) waiting to be written.");
+        }
+    }
+
+    public static void printRatingHistogram(String label, int[] counts) {
+        int total = 0;
+        int sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+            sum += counts[i] * (i + 1);
+        }
+        System.out.printf("%-14s %-6d %-6d %-6d %-6d %-6d %-8d %-8.2f%n", label, counts[0], counts[1], counts[2], counts[3], counts[4],
+                total, total == 0 ? 0.0 : (double) sum / total);
+    }
+
+    // Trends come from the in-memory rollups; bills is not queried
+    public static void displaySalesTrends() {
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Sales Trends:");
+        System.out.println("1. Last 24 hours (hourly)");
+        System.out.println("2. Last 30 days (daily)");
+        System.out.println("3. Last 12 months (monthly)");
+        System.out.print("Enter your choice: ");
+        int choice = scanner.nextInt();
+
+        int granularity;
+        int periods;
+        switch (choice) {
+            case 1:
+                granularity = SalesRollups.HOURLY;
+                periods = 24;
+                break;
+            case 2:
+                granularity = SalesRollups.DAILY;
+                periods = 30;
+                break;
+            case 3:
+                granularity = SalesRollups.MONTHLY;
+                periods = 12;
+                break;
+            default:
+                System.out.println("Invalid choice.");
+                return;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        System.out.printf("%-18s %-12s %-10s %-8s%n", "Period", "Revenue", "Quantity", "Bills");
+        for (int i = periods - 1; i >= 0; i--) {
+            LocalDateTime at = granularity == SalesRollups.HOURLY ? now.minusHours(i)
+                    : granularity == SalesRollups.DAILY ? now.minusDays(i) : now.minusMonths(i);
+            String period = granularity == SalesRollups.HOURLY ? at.toLocalDate() + " " + String.format("%02d:00", at.getHour())
+                    : granularity == SalesRollups.DAILY ? at.toLocalDate().toString() : String.format("%d-%02d", at.getYear(), at.getMonthValue());
+            double[] totals = salesRollups.totals(SalesRollups.STORE, granularity, at);
+            System.out.printf("%-18s %-12.2f %-10d %-8d%n", period, totals[0], (int) totals[1], (int) totals[2]);
+        }
+    }
+
+    public static void displaySalesToday() {
+        LocalDateTime now = LocalDateTime.now();
+        System.out.println("Sales so far today (" + now.toLocalDate() + "):");
+        System.out.printf("%-14s %-12s %-10s %-8s%n", "Tender", "Revenue", "Quantity", "Bills");
+        for (String name : salesRollups.seriesNames()) {
+            double[] totals = salesRollups.totals(name, SalesRollups.DAILY, now);
+            System.out.printf("%-14s %-12.2f %-10d %-8d%n", name, totals[0], (int) totals[1], (int) totals[2]);
+        }
+        double[] thisHour = salesRollups.totals(SalesRollups.STORE, SalesRollups.HOURLY, now);
+        System.out.printf("This hour: %.2f from %d bill(s)%n", thisHour[0], (int) thisHour[2]);
+    }
  //************************************************Functions executions***********************************************************  
  //=======================================================Insert Product==========================================================
     public static void insertProductIntoBill(Connection connection, int billId, int customerId) throws SQLException {
         try {
             Scanner scanner = new Scanner(System.in);
+            BillCart cart = getOpenCart(billId);
+            if (cart == null) {
+                return;
+            }
 
             // Ask for product name
             System.out.print("Enter product name: ");
             String productName = scanner.nextLine();
 
-            // Query to retrieve product details
-            String query = "SELECT id, stock, rate FROM products WHERE name = ?";
-            try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
-                preparedStatement.setString(1, productName);
-                try (ResultSet resultSet = preparedStatement.executeQuery()) {
-                    if (resultSet.next()) {
-                        int productId = resultSet.getInt("id");
-                        double rate = resultSet.getDouble("rate");
-                        int stock = resultSet.getInt("stock");
-
-                        // Ask for quantity
-                        System.out.print("Enter quantity: ");
-                        int quantity = scanner.nextInt();
-
-                        // Query to get the total quantity already added to the bill
-                        String totalQuantityQuery = "SELECT IFNULL(SUM(quantity), 0) AS totalQuantity FROM bill_items WHERE bill_id = ? AND product_id = ?";
-                        try (PreparedStatement totalQuantityStatement = connection.prepareStatement(totalQuantityQuery)) {
-                            totalQuantityStatement.setInt(1, billId);
-                            totalQuantityStatement.setInt(2, productId);
-                            try (ResultSet totalQuantityResultSet = totalQuantityStatement.executeQuery()) {
-                                if (totalQuantityResultSet.next()) {
-                                    int totalQuantityInBill = totalQuantityResultSet.getInt("totalQuantity");
-                                    int availableStock = stock - totalQuantityInBill;
-
-                                    // Check if stock is sufficient
-                                    if (availableStock >= quantity) {
-                                        // Update total quantity and total amount
-                                        double amount = rate * quantity;
-                                        updateBillTotals(connection, billId, quantity, amount);
-
-                                        // Insert the product into the bill_items table
-                                        insertBillItem(connection, billId, productId, quantity, rate);
-
-                                        System.out.println("Product added to the bill successfully.");
-                                    } else {
-                                        // Insufficient stock
-                                        System.out.println("Insufficient stock for the selected product.");
-                                    }
-                                }
-                            }
-                        }
-                    } else {
-                        System.out.println("Product not found.");
-                    }
+            // Retrieve product details
+            Product product = findProduct(connection, productName);
+            if (product != null) {
+                int productId = Integer.parseInt(product.getProductId());
+
+                // Ask for quantity
+                System.out.print("Enter quantity: ");
+                int quantity = scanner.nextInt();
+
+                // Stock already in the cart is not available again
+                int availableStock = product.getStock() - cart.quantityOf(productId);
+
+                // Check if stock is sufficient
+                if (availableStock >= quantity) {
+                    cart.add(productId, product.getName(), product.getPrice(), product.getRate(), quantity);
+                    System.out.println("Product added to the bill successfully.");
+                } else {
+                    // Insufficient stock
+                    System.out.println("Insufficient stock for the selected product.");
                 }
+            } else {
+                System.out.println("Product not found.");
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-	public static void insertBillItem(Connection connection, int billId, int productId, int quantity, double price) throws SQLException {
-	    String query = "INSERT INTO bill_items (bill_id, product_id, quantity, price) VALUES (?, ?, ?, ?)";
-	    try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
-	        preparedStatement.setInt(1, billId);
-	        preparedStatement.setInt(2, productId);
-	        preparedStatement.setInt(3, quantity);
-	        preparedStatement.setDouble(4, price);
-	        preparedStatement.executeUpdate();
-	    }
-	}
+    // Looks the product up in MySQL, falling back to the offline catalog snapshot when the link is down
+    public static Product findProduct(Connection connection, String productName) throws SQLException {
+        if (offlineStore.isOffline() && isLinkDown(connection)) {
+            return offlineStore.findProduct(productName);
+        }
+        String query = "SELECT id, name, price, stock, rate FROM products WHERE name = ?";
+        try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            preparedStatement.setString(1, productName);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return new Product(resultSet.getInt("id"), resultSet.getString("name"), resultSet.getDouble("price"),
+                        resultSet.getDouble("rate"), resultSet.getInt("stock"));
+            }
+        } catch (SQLException e) {
+            if (!isLinkDown(connection)) {
+                throw e;
+            }
+            offlineStore.markOffline();
+            return offlineStore.findProduct(productName);
+        }
+    }
+
+    public static BillCart getOpenCart(int billId) {
+        BillCart cart = BillCart.get(billId);
+        if (cart == null) {
+            System.out.println("Bill " + billId + " is no longer open.");
+        } else if (paymentGateway.isPending(billId)) {
+            // The amount being authorized must not change under the processor
+            System.out.println("Bill " + billId + " is waiting for payment authorization.");
+            return null;
+        }
+        return cart;
+    }
 //====================================================Update Product===========================================================	
 	public static void updateProductIntoBill(Connection connection, int billId, int customerId) {
 	    try {
 	        Scanner scanner = new Scanner(System.in);
+	        BillCart cart = getOpenCart(billId);
+	        if (cart == null) {
+	            return;
+	        }
 
 	        // Get product name and new quantity as input
 	        System.out.print("Enter product name: ");
@@ -508,198 +1133,71 @@ public class RetailShopBillingSystem{
 	        int newQuantity = scanner.nextInt();
 
 	        // Get product details from the products table
-	        String getProductDetailsQuery = "SELECT id, rate, stock FROM products WHERE name = ?";
-	        int productId = 0;
-	        double productPrice = 0.0;
-	        int stock = 0;
-	        try (PreparedStatement getProductDetailsStatement = connection.prepareStatement(getProductDetailsQuery)) {
-	            getProductDetailsStatement.setString(1, productName);
-	            try (ResultSet resultSet = getProductDetailsStatement.executeQuery()) {
-	                if (resultSet.next()) {
-	                    productId = resultSet.getInt("id");
-	                    productPrice = resultSet.getDouble("rate");
-	                    stock = resultSet.getInt("stock");
-	                } else {
-	                    System.out.println("Product not found.");
-	                    return;
-	                }
-	            }
-	        }
-
-	        // Check if the product exists in the bill_items table
-	        String getBillItemQuery = "SELECT id, quantity, price FROM bill_items WHERE bill_id = ? AND product_id = ?";
-	        int billItemId = 0;
-	        int oldQuantity = 0;
-	        double oldPrice = 0.0;
-	        try (PreparedStatement getBillItemStatement = connection.prepareStatement(getBillItemQuery)) {
-	            getBillItemStatement.setInt(1, billId);
-	            getBillItemStatement.setInt(2, productId);
-	            try (ResultSet resultSet = getBillItemStatement.executeQuery()) {
-	                if (resultSet.next()) {
-	                    billItemId = resultSet.getInt("id");
-	                    oldQuantity = resultSet.getInt("quantity");
-	                    oldPrice = resultSet.getDouble("price");
-	                } else {
-	                    System.out.println("Product not found in the bill.");
-	                    return;
-	                }
-	            }
+	        Product product = findProduct(connection, productName);
+	        if (product == null) {
+	            System.out.println("Product not found.");
+	            return;
 	        }
+	        int productId = Integer.parseInt(product.getProductId());
+	        int stock = product.getStock();
 
-	        // Update the quantity and price in the bill item
+	        // Update the quantity in the bill item
 	        if (newQuantity > stock) {
 	            System.out.println("Insufficient stock.");
 	            return;
 	        }
-	        String updateProductQuery = "UPDATE bill_items SET quantity = ?, price = ? WHERE id = ?";
-	        try (PreparedStatement updateProductStatement = connection.prepareStatement(updateProductQuery)) {
-	            updateProductStatement.setInt(1, newQuantity);
-	            updateProductStatement.setDouble(2, productPrice * newQuantity);
-	            updateProductStatement.setInt(3, billItemId);
-	            updateProductStatement.executeUpdate();
+	        if (newQuantity <= 0) {
+	            System.out.println("Quantity must be greater than zero. Use Delete Product to remove it.");
+	            return;
+	        }
+	        if (cart.setQuantity(productId, newQuantity)) {
+	            System.out.println("Product updated in the bill successfully.");
+	        } else {
+	            System.out.println("Product not found in the bill.");
 	        }
-
-	        // Update the bill totals
-	        double amountDifference = (productPrice * newQuantity) - (oldPrice * oldQuantity);
-	        updateBillTotals(connection, billId, newQuantity - oldQuantity, amountDifference);
-	        
-	        //Update bill items
-	        updateBillItem(connection, billId, productId, newQuantity, productPrice);
-
-	        System.out.println("Product updated in the bill successfully.");
 	    } catch (SQLException e) {
 	        e.printStackTrace();
 	    }
 	}
-
-	public static void updateBillTotals(Connection connection, int billId, int quantityDifference, double amountDifference) throws SQLException {
-	    String updateBillQuery = "UPDATE bills SET tot_quantity = tot_quantity + ?, total = total + ? WHERE id = ?";
-	    try (PreparedStatement updateBillStatement = connection.prepareStatement(updateBillQuery)) {
-	        updateBillStatement.setInt(1, quantityDifference);
-	        updateBillStatement.setDouble(2, amountDifference);
-	        updateBillStatement.setInt(3, billId);
-	        updateBillStatement.executeUpdate();
-	    }
-	}
-	public static void updateBillItem(Connection connection, int billId, int productId, int quantity, double price) throws SQLException {
-	    String query = "UPDATE bill_items SET quantity = ?, price = ? WHERE bill_id = ? AND product_id = ?";
-	    try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
-	        preparedStatement.setInt(1, quantity);
-	        preparedStatement.setDouble(2, price);
-	        preparedStatement.setInt(3, billId);
-	        preparedStatement.setInt(4, productId);
-	        preparedStatement.executeUpdate();
-	    }
-	}
 //=====================================================Delete Product==========================================================
 	public static void deleteProductFromBill(Connection connection, int billId, int customerId) {
-	    try {
-	        Scanner scanner = new Scanner(System.in);
-	        System.out.print("Enter the product name: ");
-	        String productName = scanner.nextLine().trim(); // Trim to remove leading/trailing whitespace
-
-	        // Get the bill item ID based on the provided bill ID, customer ID, and product name
-	        String getBillItemIdQuery = "SELECT bi.id " +
-	                                     "FROM bill_items bi " +
-	                                     "JOIN bills b ON bi.bill_id = b.id " +
-	                                     "JOIN products p ON bi.product_id = p.id " +
-	                                     "WHERE b.id = ? AND b.customer_id = ? AND LOWER(p.name) = LOWER(?)"; // Case-insensitive comparison
-	        try (PreparedStatement getBillItemIdStatement = connection.prepareStatement(getBillItemIdQuery)) {
-	            getBillItemIdStatement.setInt(1, billId);
-	            getBillItemIdStatement.setInt(2, customerId);
-	            getBillItemIdStatement.setString(3, productName);
-	            try (ResultSet resultSet = getBillItemIdStatement.executeQuery()) {
-	                if (resultSet.next()) {
-	                    int billItemId = resultSet.getInt("id");
-
-	                    // Get the quantity and price of the product in the bill item
-	                    String getProductDetailsQuery = "SELECT quantity, price FROM bill_items WHERE id = ?";
-	                    try (PreparedStatement getProductDetailsStatement = connection.prepareStatement(getProductDetailsQuery)) {
-	                        getProductDetailsStatement.setInt(1, billItemId);
-	                        try (ResultSet productResultSet = getProductDetailsStatement.executeQuery()) {
-	                            if (productResultSet.next()) {
-	                                int quantity = productResultSet.getInt("quantity");
-	                                double price = productResultSet.getDouble("price");
-
-	                                // Delete the bill item
-	                                String deleteBillItemQuery = "DELETE FROM bill_items WHERE id = ?";
-	                                try (PreparedStatement deleteBillItemStatement = connection.prepareStatement(deleteBillItemQuery)) {
-	                                    deleteBillItemStatement.setInt(1, billItemId);
-	                                    deleteBillItemStatement.executeUpdate();
-
-	                                    // Update the bill totals
-	                                    updateBillTotals(connection, billId, -quantity, -price);
-
-	                                    System.out.println("Product deleted from the bill successfully.");
-	                                }
-	                            }
-	                        }
-	                    }
-	                } else {
-	                    System.out.println("Product not found.");
-	                }
-	            }
-	        }
-	    } catch (SQLException e) {
-	        e.printStackTrace();
+	    Scanner scanner = new Scanner(System.in);
+	    BillCart cart = getOpenCart(billId);
+	    if (cart == null) {
+	        return;
 	    }
-	}
-
-	public static void deleteBillItem(Connection connection, int billId, String productName) throws SQLException {
-		String deleteQuery = 
-		        "DELETE FROM bill_items " +
-		        "WHERE bill_id = ? AND product_id = ( " +
-		        "  SELECT p.id FROM products p WHERE p.name = ? " +
-		        ")";
-	    try (PreparedStatement preparedStatement = connection.prepareStatement(deleteQuery)) {
-	        preparedStatement.setInt(1, billId);
-	        preparedStatement.setString(2, productName);
-	        preparedStatement.executeUpdate();
+	    System.out.print("Enter the product name: ");
+	    String productName = scanner.nextLine().trim(); // Trim to remove leading/trailing whitespace
+
+	    // Case-insensitive match against the lines in the cart
+	    BillCart.Line line = cart.findLine(productName);
+	    if (line != null) {
+	        cart.remove(line.getProductId());
+	        System.out.println("Product deleted from the bill successfully.");
+	    } else {
+	        System.out.println("Product not found.");
 	    }
 	}
+
 //=======================================================Display product==================================================== 	
 	public static void displayProductFromBill(Connection connection, int billId, int customerId) throws SQLException {
 		Scanner scanner = new Scanner(System.in);
-	    String query = "SELECT b.id AS BillID, b.payment_method AS PaymentMethod, b.bill_date AS BillDate, " +
-	                   "p.name AS ProductName, p.price AS MRP, bi.price AS Rate, bi.quantity AS Quantity, " +
-	                   "(bi.price * bi.quantity) AS Amount " +
-	                   "FROM bills b " +
-	                   "JOIN bill_items bi ON b.id = bi.bill_id " +
-	                   "JOIN products p ON bi.product_id = p.id " +
-	                   "WHERE b.id = ? AND b.customer_id = ?";
-	    try (PreparedStatement statement = connection.prepareStatement(query)) {
-	        statement.setInt(1, billId);
-	        statement.setInt(2, customerId);
-	        try (ResultSet resultSet = statement.executeQuery()) {
-	            System.out.println("--------------------------------------------------------------------------------------------------------");
-	            System.out.printf("| %-8s | %-20s | %-20s | %-10s | %-8s | %-8s | %-8s |%n",
-	                              "BillID", "BillDate", "ProductName", "MRP", "Rate", "Quantity", "Amount");
-	            System.out.println("--------------------------------------------------------------------------------------------------------");
-	            int totalQuantity = 0;
-	            double totalAmount = 0;
-	            while (resultSet.next()) {
-	                int billID = resultSet.getInt("BillID");
-	                String paymentMethod = resultSet.getString("PaymentMethod");
-	                Timestamp billDate = resultSet.getTimestamp("BillDate");
-	                String productName = resultSet.getString("ProductName");
-	                double mrp = resultSet.getDouble("MRP");
-	                double rate = resultSet.getDouble("Rate");
-	                int quantity = resultSet.getInt("Quantity");
-	                double amount = resultSet.getDouble("Amount");
-
-	                totalQuantity += quantity;
-	                totalAmount += amount;
-
-	                System.out.printf("| %-8d | %-20s | %-20s | %-10.2f | %-8.2f | %-8d | %-8.2f |%n",
-	                                  billID, billDate, productName, mrp, rate, quantity, amount);
-	            }
-	            System.out.println("---------------------------------------------------------------------------------------------------------");
-	            System.out.printf("| %-79s | %-9d | %-9.2f |%n", "Total", totalQuantity, totalAmount);
-	            System.out.println("---------------------------------------------------------------------------------------------------------");
-	        }
-	    } catch (SQLException e) {
-	        e.printStackTrace();
+	    BillCart cart = getOpenCart(billId);
+	    if (cart == null) {
+	        return;
+	    }
+	    Timestamp billDate = new Timestamp(cart.getOpenedAt());
+	    System.out.println("--------------------------------------------------------------------------------------------------------");
+	    System.out.printf("| %-8s | %-20s | %-20s | %-10s | %-8s | %-8s | %-8s |%n",
+	                      "BillID", "BillDate", "ProductName", "MRP", "Rate", "Quantity", "Amount");
+	    System.out.println("--------------------------------------------------------------------------------------------------------");
+	    for (BillCart.Line line : cart.getLines()) {
+	        System.out.printf("| %-8d | %-20s | %-20s | %-10.2f | %-8.2f | %-8d | %-8.2f |%n",
+	                          billId, billDate, line.getProductName(), line.getMrp(), line.getRate(), line.getQuantity(), line.getAmount());
 	    }
+	    System.out.println("---------------------------------------------------------------------------------------------------------");
+	    System.out.printf("| %-79s | %-9d | %-9.2f |%n", "Total", cart.getTotalQuantity(), cart.getTotal());
+	    System.out.println("---------------------------------------------------------------------------------------------------------");
 	    System.out.print("Would you like to proceed with payment methods? (yes/no): ");
         String proceedPayment = scanner.next();
         if ("yes".equalsIgnoreCase(proceedPayment)) {
@@ -714,12 +1212,14 @@ public class RetailShopBillingSystem{
 	public static void proceedToPayment(Connection connection, int billId, int customerId) throws SQLException {
         System.out.println("Payment method (cash, credit_card, upi) ");
 
-        handlePaymentMethods(connection, billId, customerId);
-        System.out.println("Payment completed successfully. Thank you for your purchase!");
+        if (handlePaymentMethods(connection, billId, customerId)) {
+            System.out.println("Payment completed successfully. Thank you for your purchase!");
+        }
     }
 
 //**************************************************payment methods***********************************************************
 //========================================================UPI Payment=========================================================	
+	// Sends the UPI collect request off for authorization; true once it is on its way
 	public static boolean handleUPIPayment(Connection connection, int billId, int customerId) {
 	    Scanner scanner = new Scanner(System.in);
 
@@ -729,44 +1229,39 @@ public class RetailShopBillingSystem{
 	    System.out.print("Enter transaction reference number (e.g., 1234567890): ");
 	    String transactionRef = scanner.next();
 
-	    try {
-	        String updatePaymentMethodQuery = "UPDATE bills SET payment_method = 'upi' WHERE id = ? AND customer_id = ?";
-	        try (PreparedStatement statement = connection.prepareStatement(updatePaymentMethodQuery)) {
-	            statement.setInt(1, billId);
-	            statement.setInt(2, customerId);
-	            statement.executeUpdate();
-	        }
-
-	        System.out.println("Payment successful using UPI.");
-	        System.out.println("UPI ID: " + upiId);
-	        System.out.println("Transaction Reference Number: " + transactionRef);
-
-	        displayProductAfterBill(connection, billId, customerId);
-
-	        return true;
-	    } catch (SQLException e) {
-	        e.printStackTrace();
+	    BillCart cart = BillCart.get(billId);
+	    if (!paymentGateway.submit(PaymentRequest.upi(billId, customerId, cart.getTotal(), upiId, transactionRef))) {
+	        System.out.println("Bill " + billId + " is already waiting for payment authorization.");
 	        return false;
 	    }
+	    System.out.println("Waiting for UPI confirmation of bill " + billId + ". You can start the next customer meanwhile.");
+	    return true;
 	}
 
+	// The bill is held with the gateway while the cash is counted, so the reaper cannot close it meanwhile
 	public static boolean handleCashPayment(Connection connection, int billId, int customerId) {
+	    if (!paymentGateway.hold(billId)) {
+	        System.out.println("Bill " + billId + " is already waiting for payment authorization.");
+	        return false;
+	    }
+	    try {
+	        return takeCashPayment(connection, billId, customerId);
+	    } finally {
+	        paymentGateway.release(billId);
+	    }
+	}
+
+	private static boolean takeCashPayment(Connection connection, int billId, int customerId) {
 	    Scanner scanner = new Scanner(System.in);
 
 	    try {
-	        String getTotalAmountQuery = "SELECT SUM(price * quantity) AS total FROM bill_items WHERE bill_id = ?";
-	        double totalAmount = 0.0;
-	        try (PreparedStatement statement = connection.prepareStatement(getTotalAmountQuery)) {
-	            statement.setInt(1, billId);
-	            try (ResultSet resultSet = statement.executeQuery()) {
-	                if (resultSet.next()) {
-	                    totalAmount = resultSet.getDouble("total");
-	                } else {
-	                    System.out.println("No matching bill items found.");
-	                    return false;
-	                }
-	            }
+	        BillCart cart = BillCart.get(billId);
+	        if (cart == null) {
+	            // Reaped before the hold was taken
+	            System.out.println("Bill " + billId + " is no longer open.");
+	            return false;
 	        }
+	        double totalAmount = cart.getTotal();
 	        System.out.println("Total Amount is : " + totalAmount);
 
 	        System.out.print("Enter amount tendered: ");
@@ -792,12 +1287,7 @@ public class RetailShopBillingSystem{
 
 	        double changeDue = amountTendered - totalAmount;
 
-	        String updatePaymentMethodQuery = "UPDATE bills SET payment_method = 'cash' WHERE id = ? AND customer_id = ?";
-	        try (PreparedStatement statement = connection.prepareStatement(updatePaymentMethodQuery)) {
-	            statement.setInt(1, billId);
-	            statement.setInt(2, customerId);
-	            statement.executeUpdate();
-	        }
+	        settleBill(connection, cart, "cash");
 
 	        System.out.println("Payment successful using Cash.");
 	        System.out.printf("Total Amount: %.2f%n", totalAmount);
@@ -813,68 +1303,138 @@ public class RetailShopBillingSystem{
 	    }
 	}
 
+	// Sends the card off for authorization; true once it is on its way
 	public static boolean handleCreditCardPayment(Connection connection, int billId, int customerId) {
 	    Scanner scanner = new Scanner(System.in);
 
-	    try {
-	        String getTotalAmountQuery = "SELECT SUM(price * quantity) AS total FROM bill_items WHERE bill_id = ?";
-	        double totalAmount = 0.0;
-	        try (PreparedStatement statement = connection.prepareStatement(getTotalAmountQuery)) {
-	            statement.setInt(1, billId);
-	            try (ResultSet resultSet = statement.executeQuery()) {
-	                if (resultSet.next()) {
-	                    totalAmount = resultSet.getDouble("total");
-	                } else {
-	                    System.out.println("No matching bill found.");
-	                    return false;
-	                }
-	            }
-	        }
+	    BillCart cart = BillCart.get(billId);
+	    double totalAmount = cart.getTotal();
 
-	        System.out.println("Enter credit card details for payment");
-	        System.out.print("Enter credit card number (e.g., 1234567812345678): ");
-	        String cardNumber = scanner.next();
-	        System.out.print("Enter card expiry date (MM/YY, e.g., 12/25): ");
-	        String expiryDate = scanner.next();
-	        System.out.print("Enter CVV (e.g., 123): ");
-	        String cvv = scanner.next();
+	    System.out.println("Enter credit card details for payment");
+	    System.out.print("Enter credit card number (e.g., 1234567812345678): ");
+	    String cardNumber = scanner.next();
+	    System.out.print("Enter card expiry date (MM/YY, e.g., 12/25): ");
+	    String expiryDate = scanner.next();
+	    System.out.print("Enter CVV (e.g., 123): ");
+	    String cvv = scanner.next();
 
-	        boolean isAuthorized = authorizeCreditCard(cardNumber, expiryDate, cvv, totalAmount);
+	    if (!paymentGateway.submit(PaymentRequest.card(billId, customerId, totalAmount, cardNumber, expiryDate, cvv))) {
+	        System.out.println("Bill " + billId + " is already waiting for payment authorization.");
+	        return false;
+	    }
+	    System.out.printf("Authorizing %.2f on the card for bill %d. You can start the next customer meanwhile.%n", totalAmount, billId);
+	    return true;
+	}
 
-	        if (!isAuthorized) {
-	            System.out.println("Credit card authorization failed. Please try again.");
-	            return false;
-	        }
+	// Takes the bill in parts, any mix of cash, UPI and card, then settles all of them together.
+	// Card and UPI parts are authorized as they are entered; returns the tenders, or null if not paid.
+	// The bill is held with the gateway meanwhile, and approved parts are reversed if it is not paid.
+	public static List<Tender> handleSplitPayment(Connection connection, int billId, int customerId) {
+	    if (!paymentGateway.hold(billId)) {
+	        System.out.println("Bill " + billId + " is already waiting for payment authorization.");
+	        return null;
+	    }
+	    try {
+	        return takeSplitPayment(connection, billId, customerId);
+	    } finally {
+	        paymentGateway.release(billId);
+	    }
+	}
 
-	        String updatePaymentMethodQuery = "UPDATE bills SET payment_method = 'credit_card' WHERE id = ? AND customer_id = ?";
-	        try (PreparedStatement statement = connection.prepareStatement(updatePaymentMethodQuery)) {
-	            statement.setInt(1, billId);
-	            statement.setInt(2, customerId);
-	            statement.executeUpdate();
+	private static List<Tender> takeSplitPayment(Connection connection, int billId, int customerId) {
+	    Scanner scanner = new Scanner(System.in);
+	    BillCart cart = BillCart.get(billId);
+	    long remaining = Tender.paise(cart.getTotal());
+	    List<Tender> tenders = new ArrayList<>();
+	    List<PaymentRequest> approvals = new ArrayList<>();
+	    double changeDue = 0;
+
+	    while (remaining > 0) {
+	        System.out.printf("Remaining to pay: %.2f%n", remaining / 100.0);
+	        System.out.println("1. UPI  2. Cash  3. Credit Card  4. Cancel");
+	        System.out.print("Enter your choice: ");
+	        int choice = scanner.nextInt();
+	        if (choice == 4) {
+	            reverseApprovals(billId, approvals);
+	            return null;
+	        }
+	        if (choice < 1 || choice > 3) {
+	            System.out.println("Invalid choice.");
+	            continue;
+	        }
+	        System.out.print("Enter amount for this payment: ");
+	        long amount = Tender.paise(scanner.nextDouble());
+	        if (amount <= 0 || (choice != 2 && amount > remaining)) {
+	            System.out.println("Amount must be more than zero and at most what is remaining.");
+	            continue;
 	        }
 
-	        System.out.println("Payment successful using Credit Card.");
-	        System.out.printf("Total Amount: %.2f%n", totalAmount);
+	        if (choice == 2) {
+	            // Cash over the remainder is given back as change
+	            long applied = Math.min(amount, remaining);
+	            changeDue = (amount - applied) / 100.0;
+	            tenders.add(new Tender("cash", applied / 100.0, null));
+	            remaining -= applied;
+	            continue;
+	        }
 
-	        displayProductAfterBill(connection, billId, customerId);
+	        PaymentRequest request;
+	        if (choice == 1) {
+	            System.out.print("Enter UPI ID (e.g., user@bank): ");
+	            String upiId = scanner.next();
+	            System.out.print("Enter transaction reference number (e.g., 1234567890): ");
+	            request = PaymentRequest.upi(billId, customerId, amount / 100.0, upiId, scanner.next());
+	        } else {
+	            System.out.print("Enter credit card number (e.g., 1234567812345678): ");
+	            String cardNumber = scanner.next();
+	            System.out.print("Enter card expiry date (MM/YY, e.g., 12/25): ");
+	            String expiryDate = scanner.next();
+	            System.out.print("Enter CVV (e.g., 123): ");
+	            request = PaymentRequest.card(billId, customerId, amount / 100.0, cardNumber, expiryDate, scanner.next());
+	        }
+	        System.out.println("Authorizing...");
+	        // The rest of the bill cannot be taken until this part is known, so wait for it here
+	        AuthorizationResult result = paymentGateway.authorize(request).join();
+	        if (!result.isApproved()) {
+	            System.out.println((result.isUnknown() ? "Payment not taken: " : "Payment declined: ") + result.getMessage());
+	            continue;
+	        }
+	        approvals.add(request);
+	        tenders.add(new Tender(request.getTender(), request.getAmount(),
+	                request.getReference() != null ? request.getReference() : result.getAuthorizationCode()));
+	        remaining -= amount;
+	    }
 
-	        return true;
+	    try {
+	        settleBill(connection, cart, tenders);
 	    } catch (SQLException e) {
 	        e.printStackTrace();
-	        return false;
+	        reverseApprovals(billId, approvals);
+	        return null;
+	    }
+	    System.out.println("Payment successful using split payment.");
+	    for (Tender tender : tenders) {
+	        System.out.println("  " + tender);
+	    }
+	    if (changeDue > 0) {
+	        System.out.printf("Change Due: %.2f%n", changeDue);
 	    }
+	    displayProductAfterBill(connection, billId, customerId);
+	    return tenders;
 	}
 
-	public static boolean authorizeCreditCard(String cardNumber, String expiryDate, String cvv, double amount) {
-	    // Dummy authorization logic for the credit card
-	    if (cardNumber.length() == 16 && cvv.length() == 3) {
-	        return true;
+	private static void reverseApprovals(int billId, List<PaymentRequest> approvals) {
+	    for (PaymentRequest request : approvals) {
+	        System.out.printf("Bill %d was not paid. Reversing the %s part of %.2f.%n", billId, request.getTender(), request.getAmount());
+	        paymentGateway.reverse(request);
 	    }
-	    return false;
 	}
 
-    
     public static void displayProductAfterBill(Connection connection, int billId, int customerId) {
+        if (offlineStore.isQueued(billId)) {
+            // Printed from the cart when it was saved offline; it is not in the database yet
+            return;
+        }
         String query = "SELECT b.id AS BillID, b.payment_method AS PaymentMethod, b.bill_date AS BillDate, " +
                 "p.name AS ProductName, p.price AS MRP, bi.price AS Rate, bi.quantity AS Quantity, " +
                 "(bi.price * bi.quantity) AS Amount " +
@@ -920,14 +1480,24 @@ public class RetailShopBillingSystem{
                     System.out.printf("%-20s %-10s %-10s %-8d %-8.2f%n", "Total", "", "", totalQuantity, totalAmount);
                     System.out.println("=========================================================================");
 
-                    // Get payment method
-                    String getPaymentMethodQuery = "SELECT payment_method FROM bills WHERE id = ?";
+                    // Get payment method, and the tenders when the bill was split
+                    String getPaymentMethodQuery = "SELECT b.payment_method, bp.tender, bp.amount, bp.reference FROM bills b " +
+                            "LEFT JOIN bill_payments bp ON bp.bill_id = b.id AND b.payment_method = 'split' WHERE b.id = ? ORDER BY bp.id";
                     try (PreparedStatement paymentStatement = connection.prepareStatement(getPaymentMethodQuery)) {
                         paymentStatement.setInt(1, billId);
                         try (ResultSet paymentResultSet = paymentStatement.executeQuery()) {
-                            if (paymentResultSet.next()) {
-                                String paymentMethod = paymentResultSet.getString("payment_method");
-                                System.out.printf("Payment Method: %s%n", paymentMethod);
+                            boolean first = true;
+                            while (paymentResultSet.next()) {
+                                if (first) {
+                                    String paymentMethod = paymentResultSet.getString("payment_method");
+                                    System.out.printf("Payment Method: %s%n", paymentMethod);
+                                    first = false;
+                                }
+                                String tender = paymentResultSet.getString("tender");
+                                if (tender != null) {
+                                    System.out.printf("  %-12s %-10.2f %s%n", tender, paymentResultSet.getDouble("amount"),
+                                            paymentResultSet.getString("reference") != null ? paymentResultSet.getString("reference") : "");
+                                }
                             }
                         }
                     }
@@ -941,6 +1511,34 @@ public class RetailShopBillingSystem{
             e.printStackTrace();
         }
     }
+    // Receipt for a bill saved offline, printed from the cart in the same layout as displayProductAfterBill
+    public static void displayProductFromCart(BillCart cart, List<Tender> tenders) {
+        System.out.println("\n-------------------------------------------------------------------------");
+        System.out.println("                         Nellai Mart              ");
+        System.out.println("            123, Main Bazaar Street, Tirunelveli  ");
+        System.out.println("-------------------------------------------------------------------------");
+        System.out.printf("Bill ID: %d%n", cart.getBillId());
+        System.out.printf("Customer ID: %d%n", cart.getCustomerId());
+        System.out.println("=========================================================================");
+        System.out.printf("%-20s %-10s %-10s %-8s %-8s%n", "Product Name", "MRP", "Rate", "Qty", "Amount");
+        System.out.println("=========================================================================");
+        for (BillCart.Line line : cart.getLines()) {
+            System.out.printf("%-20s %-10.2f %-10.2f %-8d %-8.2f%n", line.getProductName(), line.getMrp(), line.getRate(), line.getQuantity(), line.getAmount());
+        }
+        System.out.println("=========================================================================");
+        System.out.printf("%-20s %-10s %-10s %-8d %-8.2f%n", "Total", "", "", cart.getTotalQuantity(), cart.getTotal());
+        System.out.println("=========================================================================");
+        System.out.printf("Payment Method: %s%n", Tender.methodOf(tenders));
+        if (tenders.size() > 1) {
+            for (Tender tender : tenders) {
+                System.out.printf("  %-12s %-10.2f %s%n", tender.getMethod(), tender.getAmount(),
+                        tender.getReference() != null ? tender.getReference() : "");
+            }
+        }
+        System.out.println("=========================================================================");
+        System.out.println("                   Thank you for shopping with us! ");
+        System.out.println("=========================================================================");
+    }
 //====================================================Feedback method==========================================================
     public static void addFeedback(Connection connection, int customerId) {
         Scanner scanner = new Scanner(System.in);
@@ -968,16 +1566,11 @@ public class RetailShopBillingSystem{
         // Get current date
         LocalDate feedbackDate = LocalDate.now();
 
-        String query = "INSERT INTO feedback (customer_id, feedback_date, rating, comments) VALUES (?, ?, ?, ?)";
-        try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
-            preparedStatement.setInt(1, customerId);
-            preparedStatement.setDate(2, Date.valueOf(feedbackDate));
-            preparedStatement.setInt(3, rating);
-            preparedStatement.setString(4, comments);
-            preparedStatement.executeUpdate();
+        // Written to the feedback table in the background, in batches
+        if (feedbackPipeline.submit(new FeedbackPipeline.Submission(customerId, feedbackDate, rating, comments))) {
             System.out.println("Thank you for your feedback!");
-        } catch (SQLException e) {
-            e.printStackTrace();
+        } else {
+            System.out.println("Feedback could not be recorded right now. Please try again later.");
         }
     }
 //********************************************Report generation*********************************************************************
@@ -988,6 +1581,7 @@ public class RetailShopBillingSystem{
         System.out.println("Customer Report Options:");
         System.out.println("1. View specific customer's report");
         System.out.println("2. View all customers' reports");
+        System.out.println("3. RFM segmentation");
         System.out.print("Enter your choice: ");
         int choice = scanner.nextInt();
 
@@ -1002,7 +1596,10 @@ public class RetailShopBillingSystem{
                 }
                 break;
             case 2:
-                generateCustomerAnalyticsReport(connection);
+                browseCustomerReport(connection);
+                break;
+            case 3:
+                displayCustomerSegments();
                 break;
             default:
                 System.out.println("Invalid choice.");
@@ -1011,179 +1608,122 @@ public class RetailShopBillingSystem{
     }
 
     public static boolean isCustomerIdPresent(Connection connection, int customerId) {
-        String checkCustomerQuery = "SELECT COUNT(*) FROM customers WHERE id = ?";
-        try (PreparedStatement checkCustomerStatement = connection.prepareStatement(checkCustomerQuery)) {
-            checkCustomerStatement.setInt(1, customerId);
-            try (ResultSet resultSet = checkCustomerStatement.executeQuery()) {
-                if (resultSet.next()) {
-                    return resultSet.getInt(1) > 0;
-                }
-            }
+        try {
+            return CustomerCache.shared().findById(connection, customerId) != null;
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return false;
     }
     
+    // Customer details come from the cache. The figures are read from the customer's bills, since the
+    // profile store is only fed this till's bills.
     public static void generateCustomerAnalyticsReport(Connection connection, int customerId) {
-        String customerInfoQuery = "SELECT c.id AS CustomerID, c.name AS CustomerName, c.email AS CustomerEmail, " +
-                                   "c.phone AS CustomerPhone, c.address AS CustomerAddress, " +
-                                   "SUM(b.total) AS TotalSpending, COUNT(b.id) AS NumberOfBills, " +
-                                   "AVG(b.total) AS AvgSpendingPerBill " +
-                                   "FROM customers c " +
-                                   "LEFT JOIN bills b ON c.id = b.customer_id " +
-                                   "WHERE c.id = ? " +
-                                   "GROUP BY c.id";
-
-        try (PreparedStatement customerStatement = connection.prepareStatement(customerInfoQuery)) {
-            customerStatement.setInt(1, customerId);
-            try (ResultSet customerInfoResultSet = customerStatement.executeQuery()) {
-                if (customerInfoResultSet.next()) {
-                    System.out.println("Customer Report:");
-                    System.out.println("----------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
-                    System.out.printf("| %-10s | %-10s | %-20s | %-30s | %-15s | %-30s | %-15s | %-15s | %-20s | %-20s |%n",
-                                      "SNO", "CustomerID", "CustomerName", "CustomerEmail", "CustomerPhone", "CustomerAddress",
-                                      "TotalSpending", "NumberOfBills", "AvgSpendingPerBill", "AvgMonthlySpending");
-                    System.out.println("----------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
-
-                    int count = 1;
-                    String customerName = customerInfoResultSet.getString("CustomerName");
-                    String customerEmail = customerInfoResultSet.getString("CustomerEmail");
-                    String customerPhone = customerInfoResultSet.getString("CustomerPhone");
-                    String customerAddress = customerInfoResultSet.getString("CustomerAddress");
-                    double totalSpending = customerInfoResultSet.getDouble("TotalSpending");
-                    int numberOfBills = customerInfoResultSet.getInt("NumberOfBills");
-                    double avgSpendingPerBill = customerInfoResultSet.getDouble("AvgSpendingPerBill");
-
-                    // Retrieve average monthly spending for the customer
-                    String avgMonthlySpendingQuery = "SELECT AVG(monthly_spending) AS AvgMonthlySpending " +
-                                                     "FROM (SELECT DATE_FORMAT(b.bill_date, '%Y-%m') AS Month, " +
-                                                     "SUM(b.total) AS monthly_spending " +
-                                                     "FROM bills b " +
-                                                     "WHERE b.customer_id = ? " +
-                                                     "GROUP BY Month) AS monthly_totals";
-
-                    double avgMonthlySpending = 0.0;
-
-                    try (PreparedStatement avgMonthlySpendingStatement = connection.prepareStatement(avgMonthlySpendingQuery)) {
-                        avgMonthlySpendingStatement.setInt(1, customerId);
-                        try (ResultSet avgMonthlySpendingResultSet = avgMonthlySpendingStatement.executeQuery()) {
-                            if (avgMonthlySpendingResultSet.next()) {
-                                avgMonthlySpending = avgMonthlySpendingResultSet.getDouble("AvgMonthlySpending");
-                            }
-                        }
-                    }
+        try {
+            Customer customer = CustomerCache.shared().findById(connection, customerId);
+            if (customer == null) {
+                System.out.println("Customer not found.");
+                return;
+            }
+            CustomerProfiles.Profile profile = customerProfiles.read(connection, customerId);
 
-                    // Print the customer's overall information along with average monthly spending
-                    System.out.printf("| %-10d | %-10d | %-20s | %-30s | %-15s | %-30s | %-15.2f | %-15d | %-20.2f | %-20.2f |%n",
-                                      count++, customerId, customerName, customerEmail, customerPhone, customerAddress,
-                                      totalSpending, numberOfBills, avgSpendingPerBill, avgMonthlySpending);
-
-                    // Retrieve and print the date of each purchase for the customer
-                    String purchaseDatesQuery = "SELECT b.bill_date AS DateOfPurchase " +
-                                                "FROM bills b " +
-                                                "WHERE b.customer_id = ?";
-
-                    try (PreparedStatement purchaseDatesStatement = connection.prepareStatement(purchaseDatesQuery)) {
-                        purchaseDatesStatement.setInt(1, customerId);
-                        try (ResultSet purchaseDatesResultSet = purchaseDatesStatement.executeQuery()) {
-                            while (purchaseDatesResultSet.next()) {
-                                String dateOfPurchase = purchaseDatesResultSet.getString("DateOfPurchase");
-                                System.out.printf("Purchase Date: %s%n", dateOfPurchase);
-                            }
-                        }
-                    }
-                    System.out.println("----------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
-                } else {
-                    System.out.println("Customer not found.");
-                }
+            System.out.println("Customer Report:");
+            System.out.println("----------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
+            System.out.printf("| %-10s | %-10s | %-20s | %-30s | %-15s | %-30s | %-15s | %-15s | %-20s | %-20s |%n",
+                              "SNO", "CustomerID", "CustomerName", "CustomerEmail", "CustomerPhone", "CustomerAddress",
+                              "TotalSpending", "NumberOfBills", "AvgSpendingPerBill", "AvgMonthlySpending");
+            System.out.println("----------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
+
+            // Print the customer's overall information along with average monthly spending
+            System.out.printf("| %-10d | %-10d | %-20s | %-30s | %-15s | %-30s | %-15.2f | %-15d | %-20.2f | %-20.2f |%n",
+                              1, customerId, customer.getName(), customer.getEmail(), customer.getPhone(), customer.getAddress(),
+                              profile == null ? 0.0 : profile.totalSpend, profile == null ? 0 : profile.billCount,
+                              profile == null ? 0.0 : profile.getAverageBill(), profile == null ? 0.0 : profile.getAverageMonthlySpend());
+
+            if (profile != null) {
+                System.out.printf("First Purchase: %s%n", new Timestamp(profile.firstPurchase));
+                System.out.printf("Last Purchase: %s%n", new Timestamp(profile.lastPurchase));
+                System.out.printf("Months With Purchases: %d%n", profile.activeMonths);
             }
+            System.out.println("----------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
-    public static void generateCustomerAnalyticsReport(Connection connection) {
-        String customerInfoQuery = "SELECT c.id AS CustomerID, c.name AS CustomerName, c.email AS CustomerEmail, " +
-                                   "c.phone AS CustomerPhone, c.address AS CustomerAddress, " +
-                                   "SUM(b.total) AS TotalSpending, COUNT(b.id) AS NumberOfBills, " +
-                                   "AVG(b.total) AS AvgSpendingPerBill " +
-                                   "FROM customers c " +
-                                   "LEFT JOIN bills b ON c.id = b.customer_id " +
-                                   "GROUP BY c.id";
 
-        try (PreparedStatement customerStatement = connection.prepareStatement(customerInfoQuery);
-             ResultSet customerInfoResultSet = customerStatement.executeQuery()) {
+    // All customers a page at a time, sorted and filtered in SQL
+    public static void browseCustomerReport(Connection connection) {
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Sort by: 1. Total spending  2. Number of bills  3. Last purchase");
+        System.out.print("Enter your choice: ");
+        int sortChoice = scanner.nextInt();
+        scanner.nextLine();
+        CustomerReport.SortBy sortBy = sortChoice == 2 ? CustomerReport.SortBy.BILLS
+                : sortChoice == 3 ? CustomerReport.SortBy.LAST_PURCHASE : CustomerReport.SortBy.SPENDING;
+
+        System.out.print("Address contains (blank for all): ");
+        String address = scanner.nextLine().trim();
+        System.out.print("Bills from date YYYY-MM-DD (blank for all): ");
+        String from = scanner.nextLine().trim();
+        System.out.print("Bills to date YYYY-MM-DD (blank for all): ");
+        String to = scanner.nextLine().trim();
+
+        CustomerReport report;
+        try {
+            report = new CustomerReport(sortBy, address.isEmpty() ? null : address,
+                    from.isEmpty() ? null : LocalDate.parse(from), to.isEmpty() ? null : LocalDate.parse(to), 20);
+        } catch (DateTimeParseException e) {
+            System.out.println("Invalid date. Use YYYY-MM-DD.");
+            return;
+        }
 
-            System.out.println("Customer Report:");
-            System.out.println("------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
-            System.out.printf("| %-10s | %-10s | %-20s | %-30s | %-15s | %-30s | %-15s | %-15s | %-20s | %-20s |%n",
-                              "SNO", "CustomerID", "CustomerName", "CustomerEmail", "CustomerPhone", "CustomerAddress",
-                              "TotalSpending", "NumberOfBills", "AvgSpendingPerBill", "AvgMonthlySpending");
-            System.out.println("------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
-
-            int count = 1;
-            while (customerInfoResultSet.next()) {
-                int customerId = customerInfoResultSet.getInt("CustomerID");
-                String customerName = customerInfoResultSet.getString("CustomerName");
-                String customerEmail = customerInfoResultSet.getString("CustomerEmail");
-                String customerPhone = customerInfoResultSet.getString("CustomerPhone");
-                String customerAddress = customerInfoResultSet.getString("CustomerAddress");
-                double totalSpending = customerInfoResultSet.getDouble("TotalSpending");
-                int numberOfBills = customerInfoResultSet.getInt("NumberOfBills");
-                double avgSpendingPerBill = customerInfoResultSet.getDouble("AvgSpendingPerBill");
-
-                // Retrieve average monthly spending for the customer
-                String avgMonthlySpendingQuery = "SELECT AVG(monthly_spending) AS AvgMonthlySpending " +
-                                                 "FROM (SELECT DATE_FORMAT(b.bill_date, '%Y-%m') AS Month, " +
-                                                 "SUM(b.total) AS monthly_spending " +
-                                                 "FROM bills b " +
-                                                 "WHERE b.customer_id = ? " +
-                                                 "GROUP BY Month) AS monthly_totals";
-
-                double avgMonthlySpending = 0.0;
-
-                try (PreparedStatement avgMonthlySpendingStatement = connection.prepareStatement(avgMonthlySpendingQuery)) {
-                    avgMonthlySpendingStatement.setInt(1, customerId);
-                    try (ResultSet avgMonthlySpendingResultSet = avgMonthlySpendingStatement.executeQuery()) {
-                        if (avgMonthlySpendingResultSet.next()) {
-                            avgMonthlySpending = avgMonthlySpendingResultSet.getDouble("AvgMonthlySpending");
-                        }
-                    }
+        int count = 1;
+        try {
+            while (true) {
+                List<CustomerReport.Row> page = report.nextPage(connection);
+                System.out.println("----------------------------------------------------------------------------------------------------------------------------------------------------------------------");
+                System.out.printf("| %-6s | %-10s | %-20s | %-30s | %-15s | %-30s | %-13s | %-8s | %-21s |%n",
+                                  "SNO", "CustomerID", "CustomerName", "CustomerEmail", "CustomerPhone", "CustomerAddress",
+                                  "TotalSpending", "Bills", "LastPurchase");
+                System.out.println("----------------------------------------------------------------------------------------------------------------------------------------------------------------------");
+                for (CustomerReport.Row row : page) {
+                    System.out.printf("| %-6d | %-10d | %-20s | %-30s | %-15s | %-30s | %-13.2f | %-8d | %-21s |%n",
+                                      count++, row.customerId, row.name, row.email, row.phone, row.address,
+                                      row.totalSpending, row.billCount, row.lastPurchase == null ? "-" : row.lastPurchase.toString());
                 }
-
-                // Print the customer's overall information along with average monthly spending
-                System.out.printf("| %-10d | %-10d | %-20s | %-30s | %-15s | %-30s | %-15.2f | %-15d | %-20.2f | %-20.2f |%n",
-                                  count++, customerId, customerName, customerEmail, customerPhone, customerAddress,
-                                  totalSpending, numberOfBills, avgSpendingPerBill, avgMonthlySpending);
-
-                // Retrieve and print the date of each purchase for the customer
-                String purchaseDatesQuery = "SELECT b.bill_date AS DateOfPurchase " +
-                                            "FROM bills b " +
-                                            "WHERE b.customer_id = ?";
-
-                try (PreparedStatement purchaseDatesStatement = connection.prepareStatement(purchaseDatesQuery)) {
-                    purchaseDatesStatement.setInt(1, customerId);
-                    try (ResultSet purchaseDatesResultSet = purchaseDatesStatement.executeQuery()) {
-                        while (purchaseDatesResultSet.next()) {
-                            String dateOfPurchase = purchaseDatesResultSet.getString("DateOfPurchase");
-                            System.out.printf("Purchase Date: %s%n", dateOfPurchase);
-                        }
-                    }
+                if (!report.hasMore()) {
+                    System.out.println("End of report.");
+                    return;
+                }
+                System.out.print("Enter n for the next page or q to quit: ");
+                if (!"n".equalsIgnoreCase(scanner.next())) {
+                    return;
                 }
             }
-
-            System.out.println("-------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
-
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
+
+    public static void displayCustomerSegments() {
+        Map<String, double[]> segments = customerProfiles.segment(System.currentTimeMillis());
+        System.out.println("RFM Segmentation of " + customerProfiles.size() + " customer(s):");
+        System.out.printf("%-18s %-12s %-15s %-15s%n", "Segment", "Customers", "TotalSpending", "AvgSpending");
+        for (Map.Entry<String, double[]> segment : segments.entrySet()) {
+            double customers = segment.getValue()[0];
+            double spending = segment.getValue()[1];
+            System.out.printf("%-18s %-12d %-15.2f %-15.2f%n", segment.getKey(), (int) customers, spending,
+                    customers == 0 ? 0.0 : spending / customers);
+        }
+    }
  //***********************************************************Stock analysis******************************************************************   
     public static void handleStockReportOptions(Connection connection) throws SQLException {
         Scanner scanner = new Scanner(System.in);
         System.out.println("Stock Report Options:");
         System.out.println("1. View specific product's report");
         System.out.println("2. View all products' reports");
+        System.out.println("3. Frequently bought together");
+        System.out.println("4. Top 20 best sellers");
         System.out.print("Enter your choice: ");
         int choice = scanner.nextInt();
 
@@ -1200,11 +1740,78 @@ public class RetailShopBillingSystem{
             case 2:
                 generateStockAnalyticalReport(connection);
                 break;
+            case 3:
+                System.out.print("Enter product ID: ");
+                displayFrequentlyBoughtTogether(connection, scanner.nextInt());
+                break;
+            case 4:
+                System.out.print("1. Today  2. This week: ");
+                int window = scanner.nextInt() == 2 ? BestSellers.THIS_WEEK : BestSellers.TODAY;
+                displayBestSellers(connection, window);
+                break;
             default:
                 System.out.println("Invalid choice.");
                 break;
         }
     }
+    public static void displayFrequentlyBoughtTogether(Connection connection, int productId) throws SQLException {
+        List<int[]> partners = coPurchaseIndex.frequentlyBoughtWith(productId, 10);
+        if (partners.isEmpty()) {
+            System.out.println("No bills with product " + productId + " and another product yet.");
+            return;
+        }
+        int[] productIds = new int[partners.size()];
+        for (int i = 0; i < productIds.length; i++) {
+            productIds[i] = partners.get(i)[0];
+        }
+        Map<Integer, String> names = getProductNames(connection, productIds);
+        System.out.println("Frequently bought together with product " + productId + ":");
+        System.out.printf("%-12s %-20s %-10s%n", "Product ID", "Product Name", "Bills");
+        for (int[] partner : partners) {
+            System.out.printf("%-12d %-20s %-10d%n", partner[0], names.getOrDefault(partner[0], ""), partner[1]);
+        }
+    }
+
+    public static void displayBestSellers(Connection connection, int window) throws SQLException {
+        List<long[]> top = bestSellers.top(window, 20);
+        if (top.isEmpty()) {
+            System.out.println("No sales yet " + (window == BestSellers.TODAY ? "today." : "this week."));
+            return;
+        }
+        int[] productIds = new int[top.size()];
+        for (int i = 0; i < productIds.length; i++) {
+            productIds[i] = (int) top.get(i)[0];
+        }
+        Map<Integer, String> names = getProductNames(connection, productIds);
+        System.out.println("Top " + top.size() + " best sellers " + (window == BestSellers.TODAY ? "today:" : "this week:"));
+        System.out.printf("%-6s %-12s %-20s %-10s %-10s%n", "Rank", "Product ID", "Product Name", "Units", "At Least");
+        for (int i = 0; i < top.size(); i++) {
+            long[] product = top.get(i);
+            System.out.printf("%-6d %-12d %-20s %-10d %-10d%n", i + 1, product[0], names.getOrDefault((int) product[0], ""), product[1], product[2]);
+        }
+    }
+
+    // Names for just the given products, in one query
+    public static Map<Integer, String> getProductNames(Connection connection, int[] productIds) throws SQLException {
+        Map<Integer, String> names = new HashMap<>();
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < productIds.length; i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        String query = "SELECT id, name FROM products WHERE id IN (" + placeholders + ")";
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            for (int i = 0; i < productIds.length; i++) {
+                statement.setInt(i + 1, productIds[i]);
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    names.put(resultSet.getInt("id"), resultSet.getString("name"));
+                }
+            }
+        }
+        return names;
+    }
+
     public static boolean isProductIdPresent(Connection connection, int productId) throws SQLException {
         String checkProductQuery = "SELECT COUNT(*) FROM products WHERE id = ?";
         try (PreparedStatement checkProductStatement = connection.prepareStatement(checkProductQuery)) {
@@ -1266,8 +1873,8 @@ public class RetailShopBillingSystem{
     }
 
     
-    public static void generateStockAnalyticalReport(Connection connection) throws SQLException {
-        String productInfoQuery = "SELECT " +
+    // Shared by the printed stock report and its export
+    public static final String STOCK_REPORT_QUERY = "SELECT " +
                                       "p.id AS ProductID, " +
                                       "p.name AS ProductName, " +
                                       "p.price AS Price, " +
@@ -1282,7 +1889,17 @@ public class RetailShopBillingSystem{
                                   "GROUP BY " +
                                       "p.id";
 
-        try (PreparedStatement productStatement = connection.prepareStatement(productInfoQuery);
+    // Every customer with their totals in one pass, for export
+    public static final String CUSTOMER_REPORT_QUERY = "SELECT c.id AS CustomerID, c.name AS CustomerName, c.email AS CustomerEmail, " +
+                                   "c.phone AS CustomerPhone, c.address AS CustomerAddress, " +
+                                   "COALESCE(SUM(b.total), 0) AS TotalSpending, COUNT(b.id) AS NumberOfBills, " +
+                                   "COALESCE(AVG(b.total), 0) AS AvgSpendingPerBill, MAX(b.bill_date) AS LastPurchase " +
+                                   "FROM customers c " +
+                                   "LEFT JOIN bills b ON c.id = b.customer_id " +
+                                   "GROUP BY c.id";
+
+    public static void generateStockAnalyticalReport(Connection connection) throws SQLException {
+        try (PreparedStatement productStatement = connection.prepareStatement(STOCK_REPORT_QUERY);
              ResultSet productInfoResultSet = productStatement.executeQuery()) {
             System.out.println("Stock Report:");
             System.out.println("-------------------------------------------------------------------------------------------------------------");
@@ -1315,6 +1932,9 @@ public class RetailShopBillingSystem{
         System.out.println("Restocking Options:");
         System.out.println("1. Add new product");
         System.out.println("2. Update product stock");
+        System.out.println("3. Set reorder point");
+        System.out.println("4. Show low stock");
+        System.out.println("5. Reorder suggestions");
         System.out.print("Enter your choice: ");
         int choice = scanner.nextInt();
 
@@ -1325,6 +1945,15 @@ public class RetailShopBillingSystem{
             case 2:
                 updateProductStock(connection);
                 break;
+            case 3:
+                setReorderPoint(connection);
+                break;
+            case 4:
+                displayLowStock();
+                break;
+            case 5:
+                displayReorderSuggestions(connection);
+                break;
             default:
                 System.out.println("Invalid choice.");
                 break;
@@ -1369,7 +1998,7 @@ public class RetailShopBillingSystem{
 
         // Check if product already exists
         String checkQuery = "SELECT COUNT(*) AS count FROM products WHERE name = ?";
-        String insertQuery = "INSERT INTO products (name, price, rate, stock) VALUES (?, ?, ?, ?)";
+        String insertQuery = "INSERT INTO products (name, price, rate, stock, reorder_point) VALUES (?, ?, ?, ?, ?)";
 
         try (PreparedStatement checkStatement = connection.prepareStatement(checkQuery)) {
             checkStatement.setString(1, productName);
@@ -1382,14 +2011,21 @@ public class RetailShopBillingSystem{
             }
 
             // Add new product
-            try (PreparedStatement insertStatement = connection.prepareStatement(insertQuery)) {
+            try (PreparedStatement insertStatement = connection.prepareStatement(insertQuery, Statement.RETURN_GENERATED_KEYS)) {
                 insertStatement.setString(1, productName);
                 insertStatement.setDouble(2, price);
                 insertStatement.setDouble(3, rate);
                 insertStatement.setInt(4, stock);
+                insertStatement.setInt(5, DEFAULT_REORDER_POINT);
 
                 int rowsInserted = insertStatement.executeUpdate();
                 if (rowsInserted > 0) {
+                    try (ResultSet generatedKeys = insertStatement.getGeneratedKeys()) {
+                        if (generatedKeys.next()) {
+                            lowStockMonitor.track(generatedKeys.getInt(1), stock, DEFAULT_REORDER_POINT);
+                            dayClose.onRestock(COUNTER_ID, generatedKeys.getInt(1), stock);
+                        }
+                    }
                     System.out.println("Product added successfully.");
                 } else {
                     System.out.println("Failed to add product.");
@@ -1440,6 +2076,8 @@ public class RetailShopBillingSystem{
 
             int rowsUpdated = updateStatement.executeUpdate();
             if (rowsUpdated > 0) {
+                lowStockMonitor.onRestock(productId, additionalStock);
+                dayClose.onRestock(COUNTER_ID, productId, additionalStock);
                 System.out.println("Product stock updated successfully.");
             } else {
                 System.out.println("Product does not exist.");
@@ -1449,5 +2087,92 @@ public class RetailShopBillingSystem{
         }
     }
 
-}
+    public static void setReorderPoint(Connection connection) {
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.print("Enter product ID: ");
+        int productId = scanner.nextInt();
+
+        System.out.print("Enter reorder point: ");
+        int reorderPoint = scanner.nextInt();
+
+        if (reorderPoint < 0) {
+            System.out.println("Reorder point cannot be negative.");
+            return;
+        }
 
+        String updateQuery = "UPDATE products SET reorder_point = ? WHERE id = ?";
+
+        try (PreparedStatement updateStatement = connection.prepareStatement(updateQuery)) {
+            updateStatement.setInt(1, reorderPoint);
+            updateStatement.setInt(2, productId);
+
+            if (updateStatement.executeUpdate() > 0) {
+                lowStockMonitor.setReorderPoint(productId, reorderPoint);
+                System.out.println("Reorder point updated successfully.");
+            } else {
+                System.out.println("Product does not exist.");
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void displayLowStock() {
+        List<int[]> lowStock = lowStockMonitor.lowStock();
+        if (lowStock.isEmpty()) {
+            System.out.println("No products are at or below their reorder point.");
+            return;
+        }
+        System.out.printf("%-12s %-10s %-14s%n", "Product ID", "Stock", "Reorder Point");
+        for (int[] product : lowStock) {
+            System.out.printf("%-12d %-10d %-14d%n", product[0], product[1], product[2]);
+        }
+    }
+
+    // Suggests enough stock to cover the chosen number of days at each product's current sales velocity
+    public static void displayReorderSuggestions(Connection connection) {
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.print("Enter days of stock to cover: ");
+        int coverDays = scanner.nextInt();
+
+        if (coverDays <= 0) {
+            System.out.println("Days of cover must be greater than zero.");
+            return;
+        }
+
+        String query = "SELECT id, name, stock FROM products ORDER BY id";
+
+        try {
+            salesVelocity.update(connection);
+        } catch (IOException e) {
+            // The figures in memory are current; after a restart the rows since the last save are read again
+            e.printStackTrace();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(query);
+             ResultSet resultSet = statement.executeQuery()) {
+            System.out.printf("%-12s %-20s %-10s %-12s %-10s%n", "Product ID", "Product Name", "Stock", "Units/Day", "Suggested");
+            int suggestions = 0;
+            while (resultSet.next()) {
+                int productId = resultSet.getInt("id");
+                int stock = resultSet.getInt("stock");
+                double velocity = salesVelocity.velocity(productId);
+                int suggested = (int) Math.ceil(velocity * coverDays) - stock;
+                if (suggested > 0) {
+                    System.out.printf("%-12d %-20s %-10d %-12.2f %-10d%n", productId, resultSet.getString("name"), stock, velocity, suggested);
+                    suggestions++;
+                }
+            }
+            if (suggestions == 0) {
+                System.out.println("Current stock covers " + coverDays + " day(s) for every product.");
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
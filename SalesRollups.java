@@ -0,0 +1,204 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Hourly, daily and monthly sales rollups kept in fixed-size ring buffers, one set for the whole store
+// and one per tender. Each bucket holds revenue, quantity and bill count; a split bill adds each
+// tender's amount to that tender's series and counts once in each of them. Its units are shared
+// between the tenders in proportion to their amounts, so the tender series add up to the store's
+// quantity instead of counting a split bill's units once per tender. Refunds come off revenue
+// and quantity in the bucket they happen in, leaving the bill count alone. Updated from the bill
+// feed as bills settle; saved on shutdown with the feed offset it had reached, and on startup any
+// events logged after that offset are replayed, so a crash loses nothing the feed log kept.
+public class SalesRollups {
+    public static final String STORE = "store";
+    public static final int HOURLY = 0;
+    public static final int DAILY = 1;
+    public static final int MONTHLY = 2;
+    // One week of hours, a year of days and five years of months
+    private static final int[] RING_SIZES = {24 * 7, 366, 60};
+
+    private final Path stateFile;
+    private final Map<String, Ring[]> series = new LinkedHashMap<>();
+
+    public SalesRollups(Path stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    // One granularity of one series; a slot is reused once its bucket falls out of the window
+    static class Ring {
+        final long[] buckets;
+        final double[] revenue;
+        final int[] quantity;
+        final int[] bills;
+
+        Ring(int size) {
+            buckets = new long[size];
+            revenue = new double[size];
+            quantity = new int[size];
+            bills = new int[size];
+            Arrays.fill(buckets, -1);
+        }
+
+        void add(long bucket, double amount, int units, int billCount) {
+            int slot = (int) Math.floorMod(bucket, (long) buckets.length);
+            if (buckets[slot] != bucket) {
+                if (buckets[slot] > bucket) {
+                    // Older than the window
+                    return;
+                }
+                buckets[slot] = bucket;
+                revenue[slot] = 0;
+                quantity[slot] = 0;
+                bills[slot] = 0;
+            }
+            revenue[slot] += amount;
+            quantity[slot] += units;
+            bills[slot] += billCount;
+        }
+
+        int slotOf(long bucket) {
+            int slot = (int) Math.floorMod(bucket, (long) buckets.length);
+            return buckets[slot] == bucket ? slot : -1;
+        }
+    }
+
+    // BillFeed subscriber
+    public synchronized void onBill(BillEvent event) {
+        LocalDateTime at = LocalDateTime.ofInstant(Instant.ofEpochMilli(event.getOccurredAt()), ZoneId.systemDefault());
+        long[] buckets = {hourBucket(at), dayBucket(at), monthBucket(at)};
+        if (BillEvent.REFUNDED.equals(event.getType())) {
+            add(STORE, buckets, -event.getTotal(), -event.getTotalQuantity(), 0);
+            add(event.getPaymentMethod(), buckets, -event.getTotal(), -event.getTotalQuantity(), 0);
+            return;
+        }
+        add(STORE, buckets, event.getTotal(), event.getTotalQuantity(), 1);
+        // Units are shared out on the running total, so the rounded shares add up to the bill's units
+        double paid = 0;
+        int unitsGiven = 0;
+        for (int i = 0; i < event.getTenderCount(); i++) {
+            paid += event.getTenderAmount(i);
+            int unitsUpTo = i == event.getTenderCount() - 1 || event.getTotal() <= 0
+                    ? event.getTotalQuantity()
+                    : (int) Math.round(event.getTotalQuantity() * paid / event.getTotal());
+            add(event.getTenderMethod(i), buckets, event.getTenderAmount(i), unitsUpTo - unitsGiven, 1);
+            unitsGiven = unitsUpTo;
+        }
+    }
+
+    private void add(String name, long[] buckets, double amount, int units, int bills) {
+        Ring[] rings = series.computeIfAbsent(name, key -> newRings());
+        for (int i = 0; i < rings.length; i++) {
+            rings[i].add(buckets[i], amount, units, bills);
+        }
+    }
+
+    // {revenue, quantity, bills} for the series in the bucket holding the given time; zeros if none
+    public synchronized double[] totals(String name, int granularity, LocalDateTime at) {
+        Ring[] rings = series.get(name);
+        long bucket = granularity == HOURLY ? hourBucket(at) : granularity == DAILY ? dayBucket(at) : monthBucket(at);
+        int slot = rings == null ? -1 : rings[granularity].slotOf(bucket);
+        if (slot < 0) {
+            return new double[3];
+        }
+        Ring ring = rings[granularity];
+        return new double[] {ring.revenue[slot], ring.quantity[slot], ring.bills[slot]};
+    }
+
+    public synchronized String[] seriesNames() {
+        return series.keySet().toArray(new String[0]);
+    }
+
+    // Loads the saved rollups and replays anything the feed logged after they were saved
+    public synchronized void load(BillFeedLog log) throws IOException {
+        long offset = 0;
+        if (Files.exists(stateFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile)))) {
+                offset = in.readLong();
+                int seriesCount = in.readInt();
+                for (int i = 0; i < seriesCount; i++) {
+                    Ring[] rings = newRings();
+                    series.put(in.readUTF(), rings);
+                    for (Ring ring : rings) {
+                        int used = in.readInt();
+                        for (int j = 0; j < used; j++) {
+                            int slot = in.readInt();
+                            ring.buckets[slot] = in.readLong();
+                            ring.revenue[slot] = in.readDouble();
+                            ring.quantity[slot] = in.readInt();
+                            ring.bills[slot] = in.readInt();
+                        }
+                    }
+                }
+            }
+        }
+        if (log != null) {
+            log.read(offset, Integer.MAX_VALUE, (eventOffset, event) -> onBill(event));
+        }
+    }
+
+    // Only the slots in use are written
+    public synchronized void save(BillFeedLog log) throws IOException {
+        if (stateFile.getParent() != null) {
+            Files.createDirectories(stateFile.getParent());
+        }
+        Path tmp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeLong(log != null ? log.endOffset() : 0);
+            out.writeInt(series.size());
+            for (Map.Entry<String, Ring[]> entry : series.entrySet()) {
+                out.writeUTF(entry.getKey());
+                for (Ring ring : entry.getValue()) {
+                    int used = 0;
+                    for (long bucket : ring.buckets) {
+                        if (bucket >= 0) {
+                            used++;
+                        }
+                    }
+                    out.writeInt(used);
+                    for (int slot = 0; slot < ring.buckets.length; slot++) {
+                        if (ring.buckets[slot] >= 0) {
+                            out.writeInt(slot);
+                            out.writeLong(ring.buckets[slot]);
+                            out.writeDouble(ring.revenue[slot]);
+                            out.writeInt(ring.quantity[slot]);
+                            out.writeInt(ring.bills[slot]);
+                        }
+                    }
+                }
+            }
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Ring[] newRings() {
+        Ring[] rings = new Ring[RING_SIZES.length];
+        for (int i = 0; i < rings.length; i++) {
+            rings[i] = new Ring(RING_SIZES[i]);
+        }
+        return rings;
+    }
+
+    private static long hourBucket(LocalDateTime at) {
+        return at.toLocalDate().toEpochDay() * 24 + at.getHour();
+    }
+
+    private static long dayBucket(LocalDateTime at) {
+        return at.toLocalDate().toEpochDay();
+    }
+
+    private static long monthBucket(LocalDateTime at) {
+        return at.getYear() * 12L + at.getMonthValue() - 1;
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Per-product sales velocity as an exponentially weighted moving average of units sold per day.
+// Read from bill_items, which every till writes to, through a cursor on bill_items.recorded_at. Each
+// update re-reads the last OVERLAP_MILLIS before the cursor and skips rows it has already counted by
+// id, so a row stamped before others but committed after them is still picked up. State lives in flat
+// arrays indexed through an IntIntMap and is saved to a small file with the cursor after every update.
+public class SalesVelocity {
+    public static final int UPDATE_BATCH_SIZE = 50000;
+    // Longer than any bill or return transaction stays open between its insert and its commit
+    public static final long OVERLAP_MILLIS = 10 * 60 * 1000L;
+
+    private final Path stateFile;
+    private final double alpha;
+
+    private final IntIntMap slots = new IntIntMap(1024);
+    private int[] productIds = new int[1024];
+    private double[] averages = new double[1024];
+    private int[] soldToday = new int[1024];
+    private int count;
+    // Latest recorded_at folded in, the bill_items ids counted within OVERLAP_MILLIS of it, and the day
+    // soldToday is counting
+    private long recordedUpTo;
+    private final Map<Integer, Long> recentRows = new HashMap<>();
+    private long currentDay = -1;
+
+    public SalesVelocity(Path stateFile, double alpha) {
+        this.stateFile = stateFile;
+        this.alpha = alpha;
+    }
+
+    public synchronized void load() throws IOException {
+        if (!Files.exists(stateFile)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile)))) {
+            recordedUpTo = in.readLong();
+            int rows = in.readInt();
+            for (int i = 0; i < rows; i++) {
+                recentRows.put(in.readInt(), in.readLong());
+            }
+            currentDay = in.readLong();
+            int products = in.readInt();
+            for (int i = 0; i < products; i++) {
+                int slot = slotFor(in.readInt());
+                averages[slot] = in.readDouble();
+                soldToday[slot] = in.readInt();
+            }
+        }
+    }
+
+    // Folds in bill_items recorded since the last update, then rolls the averages forward to today.
+    // Sales and returns count on the day they were recorded.
+    public synchronized void update(Connection connection) throws SQLException, IOException {
+        String query = "SELECT id, product_id, quantity, recorded_at FROM bill_items " +
+                "WHERE recorded_at > ? OR (recorded_at = ? AND id > ?) " +
+                "ORDER BY recorded_at, id LIMIT " + UPDATE_BATCH_SIZE;
+        long fromTime = Math.max(0, recordedUpTo - OVERLAP_MILLIS);
+        int fromId = 0;
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            int rows;
+            do {
+                rows = 0;
+                statement.setTimestamp(1, new Timestamp(fromTime));
+                statement.setTimestamp(2, new Timestamp(fromTime));
+                statement.setInt(3, fromId);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        rows++;
+                        fromId = resultSet.getInt("id");
+                        fromTime = resultSet.getTimestamp("recorded_at").getTime();
+                        if (recentRows.putIfAbsent(fromId, fromTime) != null) {
+                            continue;
+                        }
+                        rollTo(Instant.ofEpochMilli(fromTime).atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay());
+                        soldToday[slotFor(resultSet.getInt("product_id"))] += resultSet.getInt("quantity");
+                    }
+                }
+            } while (rows == UPDATE_BATCH_SIZE);
+        }
+        recordedUpTo = Math.max(recordedUpTo, fromTime);
+        // Rows older than the window are never read again
+        for (Iterator<Long> it = recentRows.values().iterator(); it.hasNext(); ) {
+            if (it.next() < recordedUpTo - OVERLAP_MILLIS) {
+                it.remove();
+            }
+        }
+        rollTo(LocalDate.now().toEpochDay());
+        save();
+    }
+
+    // Units per day for the product, 0 if it has never sold
+    public synchronized double velocity(int productId) {
+        int slot = slots.get(productId, -1);
+        return slot < 0 ? 0 : averages[slot];
+    }
+
+    private void rollTo(long day) {
+        if (currentDay < 0) {
+            currentDay = day;
+            return;
+        }
+        // Rows stamped on an earlier day but first seen now count toward the current day
+        if (day <= currentDay) {
+            return;
+        }
+        // Close the current day, then decay for the days with no sales in between. A day with more
+        // returns than sales counts as no sales.
+        double idleDecay = Math.pow(1 - alpha, day - currentDay - 1);
+        for (int i = 0; i < count; i++) {
+            averages[i] = (alpha * Math.max(0, soldToday[i]) + (1 - alpha) * averages[i]) * idleDecay;
+            soldToday[i] = 0;
+        }
+        currentDay = day;
+    }
+
+    private int slotFor(int productId) {
+        int slot = slots.get(productId, -1);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (count == productIds.length) {
+            productIds = Arrays.copyOf(productIds, count * 2);
+            averages = Arrays.copyOf(averages, count * 2);
+            soldToday = Arrays.copyOf(soldToday, count * 2);
+        }
+        slot = count++;
+        productIds[slot] = productId;
+        slots.put(productId, slot);
+        return slot;
+    }
+
+    private void save() throws IOException {
+        if (stateFile.getParent() != null) {
+            Files.createDirectories(stateFile.getParent());
+        }
+        Path tmp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeLong(recordedUpTo);
+            out.writeInt(recentRows.size());
+            for (Map.Entry<Integer, Long> row : recentRows.entrySet()) {
+                out.writeInt(row.getKey());
+                out.writeLong(row.getValue());
+            }
+            out.writeLong(currentDay);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(productIds[i]);
+                out.writeDouble(averages[i]);
+                out.writeInt(soldToday[i]);
+            }
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
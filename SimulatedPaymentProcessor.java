@@ -0,0 +1,130 @@
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Local stand-in for a card/UPI acquirer. Each request answers after a random latency around the
+// configured mean; a share of requests fail transiently and a share are declined, so timeouts,
+// retries and declines can be exercised without a network. Card and UPI details get the basic
+// format checks the till used to do inline. Approvals are remembered by idempotency key, so a retried
+// request gets the original authorization code back instead of a second approval. Reversed keys are
+// remembered too, so an authorization that arrives after its reversal is declined.
+public class SimulatedPaymentProcessor implements PaymentProcessor {
+    private static final DateTimeFormatter EXPIRY = DateTimeFormatter.ofPattern("MM/yy");
+
+    private final long meanLatencyMillis;
+    private final double failureRate;
+    private final double declineRate;
+    private final Map<String, String> approvedRequests = new ConcurrentHashMap<>();
+    private final Set<String> reversedRequests = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "payment-simulator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SimulatedPaymentProcessor(long meanLatencyMillis, double failureRate, double declineRate) {
+        this.meanLatencyMillis = meanLatencyMillis;
+        this.failureRate = failureRate;
+        this.declineRate = declineRate;
+    }
+
+    @Override
+    public String getName() {
+        return "simulator";
+    }
+
+    @Override
+    public CompletableFuture<AuthorizationResult> authorize(PaymentRequest request) {
+        CompletableFuture<AuthorizationResult> future = new CompletableFuture<>();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Exponential latency: mostly quick, with the occasional slow answer
+        long latency = (long) (-meanLatencyMillis * Math.log(1 - random.nextDouble()));
+        boolean fail = random.nextDouble() < failureRate;
+        boolean decline = random.nextDouble() < declineRate;
+        scheduler.schedule(() -> {
+            if (fail) {
+                future.completeExceptionally(new TransientPaymentException("Acquirer did not respond for bill " + request.getBillId()));
+            } else {
+                future.complete(answer(request, decline));
+            }
+        }, latency, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> reverse(PaymentRequest request) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long latency = (long) (-meanLatencyMillis * Math.log(1 - random.nextDouble()));
+        boolean fail = random.nextDouble() < failureRate;
+        scheduler.schedule(() -> {
+            if (fail) {
+                future.completeExceptionally(new TransientPaymentException("Acquirer did not respond to reversal for bill " + request.getBillId()));
+            } else {
+                synchronized (this) {
+                    reversedRequests.add(request.getIdempotencyKey());
+                    approvedRequests.remove(request.getIdempotencyKey());
+                }
+                future.complete(null);
+            }
+        }, latency, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private synchronized AuthorizationResult answer(PaymentRequest request, boolean decline) {
+        if (reversedRequests.contains(request.getIdempotencyKey())) {
+            return AuthorizationResult.declined(request, "Reversed");
+        }
+        String earlier = approvedRequests.get(request.getIdempotencyKey());
+        if (earlier != null) {
+            return new AuthorizationResult(request, true, earlier, "Approved");
+        }
+        String problem = "upi".equals(request.getTender()) ? checkUpi(request) : checkCard(request);
+        if (problem != null) {
+            return AuthorizationResult.declined(request, problem);
+        }
+        if (decline || request.getAmount() <= 0) {
+            return AuthorizationResult.declined(request, "Declined by issuer");
+        }
+        String code = String.format("%06d", ThreadLocalRandom.current().nextInt(1_000_000));
+        String existing = approvedRequests.putIfAbsent(request.getIdempotencyKey(), code);
+        return new AuthorizationResult(request, true, existing != null ? existing : code, "Approved");
+    }
+
+    private static String checkCard(PaymentRequest request) {
+        String cardNumber = request.getAccount();
+        if (cardNumber == null || cardNumber.length() != 16 || !cardNumber.chars().allMatch(Character::isDigit)) {
+            return "Invalid card number";
+        }
+        if (request.getCvv() == null || request.getCvv().length() != 3) {
+            return "Invalid CVV";
+        }
+        try {
+            if (YearMonth.parse(request.getExpiry(), EXPIRY).isBefore(YearMonth.now())) {
+                return "Card expired";
+            }
+        } catch (DateTimeParseException | NullPointerException e) {
+            return "Invalid expiry date";
+        }
+        return null;
+    }
+
+    private static String checkUpi(PaymentRequest request) {
+        String upiId = request.getAccount();
+        if (upiId == null || upiId.indexOf('@') <= 0 || upiId.endsWith("@")) {
+            return "Invalid UPI ID";
+        }
+        if (request.getReference() == null || request.getReference().isEmpty()) {
+            return "Missing transaction reference";
+        }
+        return null;
+    }
+}
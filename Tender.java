@@ -0,0 +1,53 @@
+import java.util.List;
+
+// One payment towards a bill: cash, credit_card or upi, the amount it covers, and the card
+// authorization code or UPI transaction reference where there is one. A bill paid with more than one
+// tender is recorded in bills.payment_method as "split", with its tenders in bill_payments.
+public class Tender {
+    public static final String SPLIT = "split";
+
+    private final String method;
+    private final double amount;
+    private final String reference;
+
+    public Tender(String method, double amount, String reference) {
+        this.method = method;
+        this.amount = amount;
+        this.reference = reference;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    // What goes in bills.payment_method
+    public static String methodOf(List<Tender> tenders) {
+        return tenders.size() == 1 ? tenders.get(0).getMethod() : SPLIT;
+    }
+
+    // Sum in paise, so rounding in the doubles cannot make a full payment look short
+    public static long paise(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    public static long totalPaise(List<Tender> tenders) {
+        long total = 0;
+        for (Tender tender : tenders) {
+            total += paise(tender.getAmount());
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + String.format("%.2f", amount) + (reference != null ? " (" + reference + ")" : "");
+    }
+}
@@ -0,0 +1,8 @@
+// A payment request failed for a reason that may clear up on retry, such as a network error or a timeout
+public class TransientPaymentException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public TransientPaymentException(String message) {
+        super(message);
+    }
+}
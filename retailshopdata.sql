@@ -9,7 +9,8 @@ CREATE TABLE customers (
     name VARCHAR(50) NOT NULL,
     email VARCHAR(100) UNIQUE,
     phone VARCHAR(15),
-    address VARCHAR(255)
+    address VARCHAR(255),
+    INDEX idx_customers_phone (phone)
 );
 
 -- Create products table
@@ -19,6 +20,8 @@ CREATE TABLE products (
     price DECIMAL(10, 2) NOT NULL CHECK (price > 0),
     stock INT NOT NULL CHECK (stock >= 0),
     rate DECIMAL(10, 2) NOT NULL DEFAULT 0,
+    -- Low-stock alerts fire when stock drops to this level
+    reorder_point INT NOT NULL DEFAULT 10,
     CHECK (rate <= price)
 );
 
@@ -28,9 +31,27 @@ CREATE TABLE bills (
     customer_id INT NOT NULL,
     tot_quantity INT NOT NULL DEFAULT 0,
     bill_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-    total DECIMAL(10, 2) NOT NULL CHECK (total > 0),
-    payment_method ENUM('cash', 'credit_card', 'upi') NOT NULL,
-    FOREIGN KEY (customer_id) REFERENCES customers(id)
+    -- Reduced by returns, down to zero for a bill returned in full
+    total DECIMAL(10, 2) NOT NULL CHECK (total >= 0),
+    -- 'split' when paid with more than one tender; the tenders are in bill_payments
+    payment_method ENUM('cash', 'credit_card', 'upi', 'split') NOT NULL,
+    -- Till that settled the bill
+    counter_id INT NOT NULL DEFAULT 1,
+    -- Bumped by every return taken against the bill; a return is written with a compare-and-set on it,
+    -- so two terminals returning goods from the same bill cannot both refund the same units
+    version INT NOT NULL DEFAULT 0,
+    FOREIGN KEY (customer_id) REFERENCES customers(id),
+    -- Covering indexes for per-customer aggregates: one customer's bills, or every customer over all time,
+    -- read customer first; a date range over every customer reads the date first
+    INDEX idx_bills_customer_date (customer_id, bill_date, total),
+    INDEX idx_bills_date_customer (bill_date, customer_id, total)
+);
+
+-- Hi/lo bill ids: each counter reserves the next block of ids from this row.
+-- Seeded after the sample bills below so no block overlaps an existing bill id.
+CREATE TABLE bill_id_blocks (
+    id INT PRIMARY KEY,
+    next_hi INT NOT NULL
 );
 
 -- Create bill_items table
@@ -38,10 +59,25 @@ CREATE TABLE bill_items (
     id INT AUTO_INCREMENT PRIMARY KEY,
     bill_id INT NOT NULL,
     product_id INT NOT NULL,
-    quantity INT NOT NULL CHECK (quantity > 0),
+    -- Negative for goods returned against the bill
+    quantity INT NOT NULL CHECK (quantity <> 0),
     price DECIMAL(10, 2) NOT NULL CHECK (price >= 0),
+    -- Server time the row was written, whatever bill_date the bill carries; SalesVelocity reads by it
+    recorded_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
     FOREIGN KEY (bill_id) REFERENCES bills(id) ON DELETE CASCADE,
-    FOREIGN KEY (product_id) REFERENCES products(id)
+    FOREIGN KEY (product_id) REFERENCES products(id),
+    INDEX idx_bill_items_recorded (recorded_at)
+);
+-- Tenders that paid or refunded each bill; they add up to bills.total
+CREATE TABLE bill_payments (
+    id INT AUTO_INCREMENT PRIMARY KEY,
+    bill_id INT NOT NULL,
+    tender ENUM('cash', 'credit_card', 'upi') NOT NULL,
+    -- Negative for a refund
+    amount DECIMAL(10, 2) NOT NULL CHECK (amount <> 0),
+    -- Card authorization code or UPI transaction reference
+    reference VARCHAR(64),
+    FOREIGN KEY (bill_id) REFERENCES bills(id) ON DELETE CASCADE
 );
 -- Create feedback table
 CREATE TABLE feedback (
@@ -106,6 +142,12 @@ INSERT INTO bills (customer_id, tot_quantity, bill_date, total, payment_method)
 (4, 7, '2023-06-04 13:00:00', 180.00, 'cash'),
 (5, 7, '2023-06-05 14:00:00', 790.00, 'credit_card');
 
+-- Start the hi/lo blocks (BillIdAllocator.BLOCK_SIZE = 100 ids each) past the highest bill id.
+-- Same statement as upgrade_schema.sql, for databases that already have bills.
+INSERT INTO bill_id_blocks (id, next_hi)
+SELECT 1, CEIL((COALESCE(MAX(id), 0) + 1) / 100) FROM bills
+ON DUPLICATE KEY UPDATE next_hi = GREATEST(bill_id_blocks.next_hi, VALUES(next_hi));
+
 -- Insert sample data for bill_items
 INSERT INTO bill_items (bill_id, product_id, quantity, price) VALUES
 (1, 1, 2, 1200.00), -- Bill 1: 2x Rice Bag 25kg
@@ -119,6 +161,17 @@ INSERT INTO bill_items (bill_id, product_id, quantity, price) VALUES
 (5, 9, 1, 250.00),  -- Bill 5: 1x Wheat Flour 5kg
 (5, 10, 6, 90.00);  -- Bill 5: 6x Besan Flour 1kg
 
+-- The sample items were sold when their bills were
+UPDATE bill_items bi JOIN bills b ON b.id = bi.bill_id SET bi.recorded_at = b.bill_date;
+
+-- Insert sample data for bill_payments
+INSERT INTO bill_payments (bill_id, tender, amount) VALUES
+(1, 'cash', 3000.00),
+(2, 'credit_card', 940.00),
+(3, 'upi', 390.00),
+(4, 'cash', 180.00),
+(5, 'credit_card', 790.00);
+
 -- Insert sample data into the feedback table
 INSERT INTO feedback (customer_id, feedback_date, rating, comments) VALUES
 (1, '2024-01-01', 5, 'Excellent service!'),
@@ -0,0 +1,55 @@
+-- Upgrade for databases created from the original retailshopdata.sql, before bill ids came from hi/lo
+-- blocks. Brings the tables to the current retailshopdata.sql. Run it once, with the tills stopped.
+-- Needs MySQL 8.0.16 or later: the old CHECK constraints are dropped by the names MySQL generated for
+-- them (<table>_chk_<n>, numbered in the order the original schema declared them).
+
+-- Phone lookups
+ALTER TABLE customers ADD INDEX idx_customers_phone (phone);
+
+-- Low-stock alerts
+ALTER TABLE products ADD COLUMN reorder_point INT NOT NULL DEFAULT 10 AFTER rate;
+
+-- Returns bring a bill's total down to zero at most; split payments; the settling till; the version
+-- returns compare-and-set on; covering indexes for the customer reports
+ALTER TABLE bills DROP CHECK bills_chk_1;
+ALTER TABLE bills
+    ADD CHECK (total >= 0),
+    MODIFY payment_method ENUM('cash', 'credit_card', 'upi', 'split') NOT NULL,
+    ADD COLUMN counter_id INT NOT NULL DEFAULT 1 AFTER payment_method,
+    ADD COLUMN version INT NOT NULL DEFAULT 0 AFTER counter_id,
+    ADD INDEX idx_bills_customer_date (customer_id, bill_date, total),
+    ADD INDEX idx_bills_date_customer (bill_date, customer_id, total);
+
+-- Returns are negative items; SalesVelocity reads items by recorded_at. Existing items are stamped with
+-- their bill's date, when they were sold.
+ALTER TABLE bill_items DROP CHECK bill_items_chk_1;
+ALTER TABLE bill_items
+    ADD CHECK (quantity <> 0),
+    ADD COLUMN recorded_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP AFTER price,
+    ADD INDEX idx_bill_items_recorded (recorded_at);
+UPDATE bill_items bi JOIN bills b ON b.id = bi.bill_id SET bi.recorded_at = b.bill_date;
+
+-- Tenders per bill. Every existing bill was paid with one tender, its payment_method, for its total.
+CREATE TABLE bill_payments (
+    id INT AUTO_INCREMENT PRIMARY KEY,
+    bill_id INT NOT NULL,
+    tender ENUM('cash', 'credit_card', 'upi') NOT NULL,
+    -- Negative for a refund
+    amount DECIMAL(10, 2) NOT NULL CHECK (amount <> 0),
+    -- Card authorization code or UPI transaction reference
+    reference VARCHAR(64),
+    FOREIGN KEY (bill_id) REFERENCES bills(id) ON DELETE CASCADE
+);
+INSERT INTO bill_payments (bill_id, tender, amount)
+SELECT id, CAST(payment_method AS CHAR), total FROM bills ORDER BY id;
+
+-- Hi/lo bill ids. The counter starts past the highest existing bill id, so the blocks of
+-- BillIdAllocator.BLOCK_SIZE = 100 ids handed to the tills never collide with bills written by the old
+-- AUTO_INCREMENT flow. This statement is safe to repeat; it never moves the counter backwards.
+CREATE TABLE bill_id_blocks (
+    id INT PRIMARY KEY,
+    next_hi INT NOT NULL
+);
+INSERT INTO bill_id_blocks (id, next_hi)
+SELECT 1, CEIL((COALESCE(MAX(id), 0) + 1) / 100) FROM bills
+ON DUPLICATE KEY UPDATE next_hi = GREATEST(bill_id_blocks.next_hi, VALUES(next_hi));